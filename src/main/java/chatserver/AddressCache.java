@@ -0,0 +1,141 @@
+package chatserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of lookup results, keyed by fully qualified username.
+ * Besides addresses it remembers for a shorter time that a user has no
+ * address or that the user's domain does not exist.
+ * <p/>
+ * A lookup that runs while the user's address changes may read the old
+ * address. Lookups therefore take a {@link #generation()} before asking the
+ * nameserver and hand it to the put methods, which drop the result if the
+ * user was invalidated since. The generations of the most recently
+ * invalidated users are remembered; for all others the newest forgotten one
+ * is assumed.
+ */
+public class AddressCache {
+
+	private int capacity;
+	private long ttl;
+	private long negativeTtl;
+	private LinkedHashMap<String, Entry> entries;
+	private LinkedHashMap<String, Long> invalidated;
+	private long generation;
+	private long forgotten;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of cached users
+	 * @param ttl
+	 *            how long (in milliseconds) an address is cached
+	 * @param negativeTtl
+	 *            how long (in milliseconds) a missing address or domain is
+	 *            cached
+	 */
+	public AddressCache(final int capacity, long ttl, long negativeTtl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, AddressCache.Entry> eldest) {
+				return size() > AddressCache.this.capacity;
+			}
+		};
+		this.invalidated = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				if (size() <= AddressCache.this.capacity)
+					return false;
+				forgotten = Math.max(forgotten, eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached result, or {@code null} if there is none
+	 */
+	public synchronized Entry get(String username) {
+		Entry entry = entries.get(username);
+		if (entry != null && entry.expires <= System.currentTimeMillis()) {
+			entries.remove(username);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * @return the generation to pass to the put methods for a lookup that
+	 *         starts now
+	 */
+	public synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * @param address
+	 *            the address of the user, {@code null} or empty if there is
+	 *            none
+	 * @param generation
+	 *            the {@link #generation()} taken before the lookup
+	 */
+	public synchronized void putAddress(String username, String address, long generation) {
+		if (isStale(username, generation))
+			return;
+		boolean missing = address == null || address.isEmpty();
+		entries.put(username, new Entry(missing ? null : address, false, System.currentTimeMillis()
+				+ (missing ? negativeTtl : ttl)));
+	}
+
+	public synchronized void putNoSuchDomain(String username, long generation) {
+		if (isStale(username, generation))
+			return;
+		entries.put(username, new Entry(null, true, System.currentTimeMillis() + negativeTtl));
+	}
+
+	public synchronized void invalidate(String username) {
+		entries.remove(username);
+		invalidated.put(username, ++generation);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		invalidated.clear();
+		forgotten = ++generation;
+	}
+
+	private boolean isStale(String username, long generation) {
+		Long last = invalidated.get(username);
+		return (last != null ? last : forgotten) > generation;
+	}
+
+	public static class Entry {
+		private final String address;
+		private final boolean noSuchDomain;
+		private final long expires;
+
+		Entry(String address, boolean noSuchDomain, long expires) {
+			this.address = address;
+			this.noSuchDomain = noSuchDomain;
+			this.expires = expires;
+		}
+
+		/**
+		 * @return the address, or {@code null} if the user has none
+		 */
+		public String getAddress() {
+			return address;
+		}
+
+		public boolean isNoSuchDomain() {
+			return noSuchDomain;
+		}
+	}
+}
@@ -7,19 +7,21 @@ import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-import nameserver.INameserverForChatserver;
 import util.Config;
 
 public class Chatserver implements IChatserverCli, Runnable {
@@ -29,11 +31,15 @@ public class Chatserver implements IChatserverCli, Runnable {
 	private InputStream userRequestStream;
 	private PrintStream userResponseStream;
 	private ServerSocket serverSocket;
+	private ServerSocketChannel serverChannel;
 	private DatagramSocket datagramSocket;
 	private ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+	private OnlineUserIndex onlineUsers = new OnlineUserIndex();
+	private SessionRegistry sessions = new SessionRegistry(onlineUsers);
 	private TCPListenerThread tcpthread;
-	private UDPListenerThread udpthread;
-	private INameserverForChatserver rootNameserver;
+	private SelectorListenerThread selectorthread;
+	private UDPListenerThread[] udpthreads;
+	private NameserverResolver nameserverResolver;
 
 	/**
 	 * @param componentName
@@ -51,6 +57,9 @@ public class Chatserver implements IChatserverCli, Runnable {
 		this.config = config;
 		this.userRequestStream = userRequestStream;
 		this.userResponseStream = userResponseStream;
+		this.nameserverResolver = new NameserverResolver(config, config.getInt("nameserver.zone.ttl"),
+				new AddressCache(config.getInt("nameserver.address.cache.size"),
+						config.getInt("nameserver.address.ttl"), config.getInt("nameserver.negative.ttl")));
 	}
 
 	@Override
@@ -66,8 +75,16 @@ public class Chatserver implements IChatserverCli, Runnable {
         //open sockets for TCP and UDP communication
 		//config = new Config("chatserver");		
 		
+		boolean selector = config.getString("tcp.engine").equals("selector");
+		int queueCapacity = config.getInt("send.queue.capacity");
+		SlowConsumerPolicy policy = SlowConsumerPolicy.parse(config.getString("send.slow.consumer"));
 		try {
-			serverSocket = new ServerSocket(config.getInt("tcp.port"));
+			if (selector) {
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.socket().bind(new InetSocketAddress(config.getInt("tcp.port")));
+			} else {
+				serverSocket = new ServerSocket(config.getInt("tcp.port"));
+			}
 			datagramSocket = new DatagramSocket(config.getInt("udp.port"));
 		}catch (SocketException e) {
 			throw new RuntimeException("Cannot listen on UDP port.", e);		
@@ -76,11 +93,27 @@ public class Chatserver implements IChatserverCli, Runnable {
 		}
 		
 		//start threads to listen for connections
-		udpthread = new UDPListenerThread(datagramSocket, this);
-		udpthread.start();
+		// all receivers share the socket: while one is busy sending a response
+		// the next one already receives
+		udpthreads = new UDPListenerThread[config.getInt("udp.receivers")];
+		for (int i = 0; i < udpthreads.length; i++) {
+			udpthreads[i] = new UDPListenerThread(datagramSocket, this, config.getInt("udp.chunk.size"), i);
+			udpthreads[i].start();
+		}
 		
-		tcpthread = new TCPListenerThread(serverSocket, this);
-		tcpthread.start();
+		if (selector) {
+			try {
+				selectorthread = new SelectorListenerThread(serverChannel, this, sessions,
+						config.getInt("tcp.selectors"), config.getInt("tcp.workers"), queueCapacity, policy);
+			} catch (IOException e) {
+				throw new RuntimeException("Cannot open selector.", e);
+			}
+			selectorthread.start();
+		} else {
+			tcpthread = new TCPListenerThread(serverSocket, this, sessions, config.getString("tcp.threads"),
+					config.getInt("tcp.workers"), queueCapacity, policy);
+			tcpthread.start();
+		}
 
         BufferedReader userRequestReader = new BufferedReader(new InputStreamReader(userRequestStream));
         PrintWriter userResponseWriter = new PrintWriter(userResponseStream, true);
@@ -108,17 +141,10 @@ public class Chatserver implements IChatserverCli, Runnable {
 		}
 	}
 	
-	private void initRMI() throws RemoteException, NotBoundException{
-			Registry registry = LocateRegistry.getRegistry(config.getString("registry.host"),
-					config.getInt("registry.port"));
-			rootNameserver = (INameserverForChatserver) registry.lookup(config
-					.getString("root_id"));
-	}
-	
-	public INameserverForChatserver getRootNameserver() throws RemoteException, NotBoundException{
-		initRMI();
-		return this.rootNameserver;
+	public NameserverResolver getNameserverResolver(){
+		return this.nameserverResolver;
 	}
+
 	public User getUser(String username){
 		return users.get(username);
 	}
@@ -131,31 +157,18 @@ public class Chatserver implements IChatserverCli, Runnable {
 		return this.userResponseStream;
 	}
 	
-	public String getOnlineUsers(){
-		List<User> onlineUsers = new ArrayList<>();
-		synchronized(users){
-			for(User u: users.values()){
-				if(u.isOnline()){
-					onlineUsers.add(u);
-					}
-			}
-		}
-		Collections.sort(onlineUsers, new Comparator<User>() {
-	        @Override
-	        public int compare(final User object1, final User object2) {
-	            return object1.getUsername().compareTo(object2.getUsername());
-	        }
-	       } );
-		
-		String result = "";
-		
-		for(User u: onlineUsers){
-			result += u.toString() + "\n";
-		}
-		if(result.equals(""))
-			return "There are no online users.";
-		
-		return "Online users: \n" + result;
+	/**
+	 * @return the encoded response to a {@code !list} request
+	 */
+	public byte[] getOnlineUsers(){
+		return onlineUsers.getListResponse();
+	}
+
+	/**
+	 * @return the response to a {@code !list} request split into datagrams
+	 */
+	public byte[][] getOnlineUsersChunks(int chunkSize){
+		return onlineUsers.getListChunks(chunkSize);
 	}
 
 
@@ -182,14 +195,20 @@ public class Chatserver implements IChatserverCli, Runnable {
 	//@Override
 	public String exit(){
 		
+		unregisterAddresses();
 		for (User user : users.values())
 			user.setOnline(false);
+		onlineUsers.clear();
 		
         if(tcpthread != null) {
             tcpthread.exit();
         }
-        if(udpthread != null) {
-            udpthread.exit();
+        if(selectorthread != null) {
+            selectorthread.exit();
+        }
+        if(udpthreads != null) {
+            for (UDPListenerThread udpthread : udpthreads)
+                udpthread.exit();
         }
         try{
         	userRequestStream.close();
@@ -198,6 +217,28 @@ public class Chatserver implements IChatserverCli, Runnable {
         }
 		return "Server successfully shut down";
 	}
+
+	/**
+	 * Removes the addresses of all users that are still logged in, as their
+	 * {@code !logout} would have done, with one remote call per zone.
+	 */
+	private void unregisterAddresses() {
+		Map<String, String> registered = new HashMap<>();
+		for (ClientThread session : sessions.getLoggedInSessions()) {
+			User user = session.getCurrentUser();
+			if (user != null && user.isRegistered())
+				registered.put(user.getUsername(), "");
+		}
+		if (registered.isEmpty())
+			return;
+		try {
+			Set<String> failed = nameserverResolver.registerUsers(registered);
+			if (!failed.isEmpty())
+				userResponseStream.println("Could not remove the addresses of " + failed);
+		} catch (RemoteException | NotBoundException e) {
+			userResponseStream.println("Could not remove the addresses of logged in users: " + e.getMessage());
+		}
+	}
 	
 
 	/**
@@ -3,196 +3,234 @@ package chatserver;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.util.List;
 
-import nameserver.INameserverForChatserver;
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
 
 public class ClientThread extends Thread {
 
 	private Socket clientSocket;
+	private Connection connection;
 	private Chatserver chatserver;
 	private BufferedReader in;
-	private PrintWriter out;
-	private User currentUser;
-	private List<ClientThread> clientThreads;
+	private volatile User currentUser;
+	private SessionRegistry sessions;
+	private long sessionId;
 	private String lastMessage = "No message received.";
 
-	public ClientThread(Socket clientSocket, Chatserver chatserver, List<ClientThread> clientThreads) {
-		this.chatserver = chatserver;
+	/**
+	 * Creates a session that is served by its own blocking thread (see
+	 * {@link #run()}). The caller has to {@link #register()} it.
+	 */
+	public ClientThread(Socket clientSocket, Connection connection, Chatserver chatserver,
+			SessionRegistry sessions) {
+		this(connection, chatserver, sessions);
 		this.clientSocket = clientSocket;
-		this.clientThreads = clientThreads;
+	}
+
+	/**
+	 * Creates a session whose input is fed to {@link #handle(String)} by
+	 * someone else, e.g. the {@link SelectorListenerThread}. The caller has
+	 * to {@link #register()} it.
+	 */
+	public ClientThread(Connection connection, Chatserver chatserver, SessionRegistry sessions) {
+		this.chatserver = chatserver;
+		this.connection = connection;
+		this.sessions = sessions;
+	}
+
+	/**
+	 * Adds the fully constructed session to the registry, before anything
+	 * else can see it.
+	 */
+	public void register() {
+		this.sessionId = sessions.add(this);
 	}
 
 	public void run() {
 
-		while (true) {
-			try {
-				in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-				out = new PrintWriter(clientSocket.getOutputStream(), true);
+		String reason = "Connection closed by client";
+		try {
+			in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+			String input;
+			while ((input = in.readLine()) != null) {
+				handle(input);
+			}
+		} catch (IOException e) {
+			reason = e.getMessage();
+		} finally {
+			connection.close();
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// the socket is closed already
+				}
+			}
+			connectionClosed(reason);
+		}
+	}
 
-				String input = "Unknown error";
-				String response = "Some error occurred.";
+	/**
+	 * Executes a single command line of the client and writes the response
+	 * back to its connection. A line may start with a correlation id such as
+	 * {@code #17 !lookup bill.de}; the response then starts with the same
+	 * id, so that a client can have many commands outstanding.
+	 */
+	public void handle(String input) throws IOException {
 
-				if ((input = in.readLine()) != null) {
-					
-					if (input.startsWith("!login")) {
-						String[] parts = input.split(" ");
-
-						if (currentUser != null) {
-							response = "You are already logged in!";
-						} else {
-							currentUser = chatserver.getUser(parts[1]);
-
-							if (currentUser != null && currentUser.getPassword().equals(parts[2])) {
-								currentUser.setOnline(true);
-								response = "Successfully logged in.";
-							} else {
-								currentUser = null;
-								response = "Wrong username or password";
-							}
-						}
-					}
-					if (input.startsWith("!logout")) {
-						if (currentUser == null)
-							response = "You are not logged in!";
-						else {
-							boolean loggedIn = false;
-							for(ClientThread t: clientThreads){
-								if(t != this && t.getCurrentUser() == currentUser){
-									loggedIn = true;
-								}
-							}
-							currentUser.setOnline(loggedIn);
-							if(!loggedIn && currentUser.isRegistered()){
-								try {
-									chatserver.getRootNameserver().registerUser(currentUser.getUsername(), "");
-								
-							}
-							catch (AlreadyRegisteredException e) {
-								response = "This address is already registered.";
-							} catch (InvalidDomainException e) {
-								// TODO Auto-generated catch block
-								response = "This domain is not valid.";
-							} catch(RemoteException|NotBoundException e){
-								response = "Address cannot be registered: Cannot communicate with the nameserver";
-							}
-							}
-							
-							response = "Successfully logged out!";
-							currentUser = null;
-							lastMessage = null;
-						}
-					}
-					if (input.startsWith("!send")) {
-						if (currentUser == null)
-							response = "You must log in first!";
-						else {
-							String[] parts = input.split(" ");
-							String msg = currentUser.getUsername() + ": ";
-							for (int i = 1; i < parts.length; i++) {
-								msg += parts[i] + " ";
-							}
-							for (ClientThread t : clientThreads) {
-								if (t.getCurrentUser() != null) {
-									if (t.getClientSocket() != clientSocket) {
-										PrintWriter out = new PrintWriter(t.getClientSocket().getOutputStream(), true);
-										t.setLastMessage(msg);
-										out.println("!public: " + msg);
-										out.flush();
-									}
-								}
-							}
-							response = "Message sent successfully!";
-						}
-					}
-					if (input.startsWith("!lastMsg")) {
-						if (currentUser == null)
-							response = "You must log in first!";
-						else {
-							response = lastMessage;
-						}
-					}
-					if (input.startsWith("!register")) {
-						if (currentUser == null)
-							response = "You must log in first!";
-						else {
-							String[] parts = input.split(" ");
-							//currentUser.setAddress(parts[1]);
-							try {
-									chatserver.getRootNameserver().registerUser(currentUser.getUsername(), parts[1]);
-									response = "Sucessfully registered address for " + currentUser.getUsername();
-							}
-							catch (AlreadyRegisteredException e) {
-								response = "This address is already registered.";
-							} catch (InvalidDomainException e) {
-								// TODO Auto-generated catch block
-								response = "This domain is not valid.";
-							} catch(RemoteException|NotBoundException e){
-								response = "Address cannot be registered: Cannot communicate with the nameserver";
-							}
-							currentUser.setRegistered(true);
+		String id = null;
+		if (input.startsWith("#")) {
+			int space = input.indexOf(' ');
+			if (space > 0) {
+				id = input.substring(0, space);
+				input = input.substring(space + 1);
+			}
+		}
 
-						}
-					}
-					if (input.startsWith("!lookup")) {
-						if (currentUser == null)
-							response = "You must log in first!";
-						else {
-							String[] parts = input.split(" ");
-							try{
-								response = lookup(parts[1]);
-							} catch(RemoteException|NotBoundException e){
-								response = "Could not lookup the address: Cannot communicate with the nameserver";
-							}
-						}
+		String response = "Some error occurred.";
+
+		if (input.startsWith("!login")) {
+			String[] parts = input.split(" ");
+
+			if (currentUser != null) {
+				response = "You are already logged in!";
+			} else {
+				User user = chatserver.getUser(parts[1]);
+
+				if (user != null && user.getPassword().equals(parts[2])) {
+					if (sessions.login(user, this)) {
+						currentUser = user;
+						response = "Successfully logged in.";
+					} else {
+						response = "Connection is closed.";
 					}
-					if (input.startsWith("!msg")) {
-						if (currentUser == null)
-							response = "You must log in first!";
-						else {
-							String[] parts = input.split(" ");
-							String message = "";
-							for (int i = 2; i < parts.length; i++) {
-								message += parts[i] + " ";
-							}
-								response = this.getCurrentUser().getUsername()+" :";
+				} else {
+					response = "Wrong username or password";
+				}
+			}
+		}
+		if (input.startsWith("!logout")) {
+			if (currentUser == null)
+				response = "You are not logged in!";
+			else {
+				boolean loggedIn = sessions.logout(currentUser, this);
+				if(!loggedIn && currentUser.isRegistered()){
+					try {
+						chatserver.getNameserverResolver().registerUser(currentUser.getUsername(), "");
+					
+				}
+				catch (AlreadyRegisteredException e) {
+					response = "This address is already registered.";
+				} catch (InvalidDomainException e) {
+					// TODO Auto-generated catch block
+					response = "This domain is not valid.";
+				} catch(RemoteException|NotBoundException e){
+					response = "Address cannot be registered: Cannot communicate with the nameserver";
+				}
+				}
+				
+				response = "Successfully logged out!";
+				currentUser = null;
+				lastMessage = null;
+			}
+		}
+		if (input.startsWith("!send")) {
+			if (currentUser == null)
+				response = "You must log in first!";
+			else {
+				String[] parts = input.split(" ");
+				String msg = currentUser.getUsername() + ": ";
+				for (int i = 1; i < parts.length; i++) {
+					msg += parts[i] + " ";
+				}
+				ByteBuffer line = OutboundQueue.encode("!public: " + msg);
+				for (ClientThread t : sessions.getLoggedInSessions()) {
+					if (t != this) {
+						t.setLastMessage(msg);
+						try {
+							t.getConnection().broadcast(line);
+						} catch (IOException e) {
+							// the recipient is gone, its own thread cleans up
 						}
 					}
-					out.println(response);
 				}
-			} catch (IOException e) {
-				this.chatserver.getUserResponseStream().println("Closing client connection: " + e.getMessage());
-				break;
+				response = "Message sent successfully!";
+			}
+		}
+		if (input.startsWith("!lastMsg")) {
+			if (currentUser == null)
+				response = "You must log in first!";
+			else {
+				response = lastMessage;
 			}
 		}
+		if (input.startsWith("!register")) {
+			if (currentUser == null)
+				response = "You must log in first!";
+			else {
+				String[] parts = input.split(" ");
+				//currentUser.setAddress(parts[1]);
+				try {
+						chatserver.getNameserverResolver().registerUser(currentUser.getUsername(), parts[1]);
+						response = "Sucessfully registered address for " + currentUser.getUsername();
+				}
+				catch (AlreadyRegisteredException e) {
+					response = "This address is already registered.";
+				} catch (InvalidDomainException e) {
+					// TODO Auto-generated catch block
+					response = "This domain is not valid.";
+				} catch(RemoteException|NotBoundException e){
+					response = "Address cannot be registered: Cannot communicate with the nameserver";
+				}
+				currentUser.setRegistered(true);
 
+			}
+		}
+		if (input.startsWith("!lookup")) {
+			if (currentUser == null)
+				response = "You must log in first!";
+			else {
+				String[] parts = input.split(" ");
+				try{
+					response = lookup(parts[1]);
+				} catch(RemoteException|NotBoundException e){
+					response = "Could not lookup the address: Cannot communicate with the nameserver";
+				}
+			}
+		}
+		if (input.startsWith("!msg")) {
+			if (currentUser == null)
+				response = "You must log in first!";
+			else {
+				String[] parts = input.split(" ");
+				String message = "";
+				for (int i = 2; i < parts.length; i++) {
+					message += parts[i] + " ";
+				}
+					response = this.getCurrentUser().getUsername()+" :";
+			}
+		}
+		connection.writeLine(id == null ? response : id + " " + response);
+	}
+
+	public void connectionClosed(String reason) {
+		sessions.remove(this);
+		this.chatserver.getUserResponseStream().println("Closing client connection: " + reason);
 	}
 	
 	public String lookup(String username)throws RemoteException, NotBoundException{
 		
-		String[] parts = username.split("\\.");
-		
-		INameserverForChatserver server;
-		
-		server = chatserver.getRootNameserver();
-		
-		for(int i = (parts.length)-1; i >= 1; i--){
-			if(server != null){
-				server = server.getNameserver(parts[i]);
-			}else{
-				return "No such domain.";
-			}
-		}
-		if(server == null)
+		String result;
+		try {
+			result = chatserver.getNameserverResolver().lookup(username);
+		} catch (InvalidDomainException e) {
 			return "No such domain.";
-		
-		String result = server.lookup(parts[0]);
+		}
 		
 		if(result == null || result.equals(""))
 			result = "User does not have a registered address.";
@@ -204,10 +242,18 @@ public class ClientThread extends Thread {
 		return currentUser;
 	}
 
+	public long getSessionId() {
+		return sessionId;
+	}
+
 	public Socket getClientSocket() {
 		return clientSocket;
 	}
 
+	public Connection getConnection() {
+		return connection;
+	}
+
 	public void setLastMessage(String lastMessage) {
 		this.lastMessage = lastMessage;
 	}
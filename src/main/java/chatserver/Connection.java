@@ -0,0 +1,39 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The outgoing side of a client session. Implementations must allow
+ * {@link #writeLine(String)} and {@link #broadcast(ByteBuffer)} to be called
+ * from several threads, since other sessions push public messages while the
+ * owner is answering a command. Neither method waits for the client to read
+ * the data; lines are queued and written by the connection itself.
+ */
+public interface Connection {
+
+	/**
+	 * Sends a single line (without line terminator) to the client.
+	 * 
+	 * @throws IOException
+	 *             if the connection is already closed
+	 */
+	public void writeLine(String line) throws IOException;
+
+	/**
+	 * Sends a line that was encoded once with {@link OutboundQueue#encode}
+	 * and is shared by all recipients. If the client cannot keep up, the
+	 * configured {@link SlowConsumerPolicy} applies.
+	 * 
+	 * @throws IOException
+	 *             if the connection is already closed
+	 */
+	public void broadcast(ByteBuffer line) throws IOException;
+
+	/**
+	 * Closes the connection. Closing an already closed connection has no
+	 * effect.
+	 */
+	public void close();
+
+}
@@ -0,0 +1,313 @@
+package chatserver;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nameserver.DomainNames;
+import nameserver.INameserverForChatserver;
+import nameserver.exceptions.AlreadyRegisteredException;
+import nameserver.exceptions.InvalidDomainException;
+import util.Config;
+
+/**
+ * Talks to the nameserver hierarchy on behalf of the chatserver. The root
+ * stub is looked up once, and the replicas of every zone that was resolved
+ * are remembered for a limited time, so that the next user of the same zone
+ * only costs the final remote call. Calls to a zone take its replicas in
+ * turn. Lookups in zones that are not known yet are resolved by the
+ * nameservers themselves, see
+ * {@link INameserverForChatserver#resolve(String)}. A replica that fails a
+ * call with a {@link RemoteException} is dropped, since it usually means that
+ * the nameserver went away; if the root fails, all stubs are dropped.
+ * <p/>
+ * Lookup results themselves are kept in an {@link AddressCache}. Entries of
+ * a user are dropped whenever that user's address is registered or removed
+ * through this resolver, and lookups that overlap such a change do not cache
+ * their result.
+ */
+public class NameserverResolver {
+
+	private Config config;
+	private long zoneTtl;
+	private volatile INameserverForChatserver root;
+	private ConcurrentHashMap<String, CachedZone> zones = new ConcurrentHashMap<>();
+	private AddressCache addresses;
+
+	/**
+	 * @param zoneTtl
+	 *            how long (in milliseconds) a resolved zone is remembered
+	 * @param addresses
+	 *            the cache for lookup results
+	 */
+	public NameserverResolver(Config config, long zoneTtl, AddressCache addresses) {
+		this.config = config;
+		this.zoneTtl = zoneTtl;
+		this.addresses = addresses;
+	}
+
+	public INameserverForChatserver getRoot() throws RemoteException, NotBoundException {
+		INameserverForChatserver r = root;
+		if (r == null) {
+			synchronized (this) {
+				if (root == null) {
+					Registry registry = LocateRegistry.getRegistry(config.getString("registry.host"),
+							config.getInt("registry.port"));
+					root = (INameserverForChatserver) registry.lookup(config.getString("root_id"));
+				}
+				r = root;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Forgets the root stub and all resolved zones.
+	 */
+	public void invalidate() {
+		root = null;
+		zones.clear();
+	}
+
+	/**
+	 * @param zone
+	 *            a zone such as {@code vienna.at}, or the empty string for the
+	 *            root zone
+	 * @return the replica of the zone whose turn it is, or {@code null} if
+	 *         there is no such zone
+	 */
+	public INameserverForChatserver getZone(String zone) throws RemoteException, NotBoundException {
+		if (zone.isEmpty())
+			return getRoot();
+
+		INameserverForChatserver replica = cachedZone(zone);
+		if (replica != null)
+			return replica;
+
+		int dot = zone.indexOf('.');
+		String parentZone = dot < 0 ? "" : zone.substring(dot + 1);
+		INameserverForChatserver parent = getZone(parentZone);
+		if (parent == null)
+			return null;
+		List<? extends INameserverForChatserver> replicas;
+		try {
+			replicas = parent.getReplicas(dot < 0 ? zone : zone.substring(0, dot));
+		} catch (RemoteException e) {
+			drop(parentZone, parent);
+			throw e;
+		}
+		if (replicas.isEmpty())
+			return null;
+		CachedZone cached = new CachedZone(replicas, System.currentTimeMillis() + zoneTtl);
+		zones.put(zone, cached);
+		return cached.next();
+	}
+
+	/**
+	 * @return the replica of the zone whose turn it is, or {@code null} if
+	 *         the zone is not known or expired
+	 */
+	private INameserverForChatserver cachedZone(String zone) {
+		CachedZone cached = zones.get(zone);
+		return cached != null && cached.expires > System.currentTimeMillis() ? cached.next() : null;
+	}
+
+	/**
+	 * Forgets a nameserver that did not answer. The other replicas of its
+	 * zone are still used until the zone expires; without any left, the zone
+	 * is resolved again.
+	 */
+	private void drop(String zone, INameserverForChatserver nameserver) {
+		if (zone.isEmpty()) {
+			invalidate();
+			return;
+		}
+		CachedZone cached = zones.get(zone);
+		if (cached != null && cached.remove(nameserver))
+			zones.remove(zone, cached);
+	}
+
+	/**
+	 * @return the registered address, {@code ""} or {@code null} if the user
+	 *         has none
+	 * @throws InvalidDomainException
+	 *             if the zone of the user does not exist
+	 */
+	public String lookup(String username) throws RemoteException, NotBoundException, InvalidDomainException {
+		if (DomainNames.split(username) == DomainNames.INVALID)
+			throw new InvalidDomainException("The domain does not exist");
+		AddressCache.Entry cached = addresses.get(username);
+		if (cached != null) {
+			if (cached.isNoSuchDomain())
+				throw new InvalidDomainException("The domain does not exist");
+			return cached.getAddress();
+		}
+
+		long generation = addresses.generation();
+		String address;
+		try {
+			try {
+				address = resolve(username);
+			} catch (RemoteException e) {
+				// retry once, without the nameserver that failed
+				address = resolve(username);
+			}
+		} catch (InvalidDomainException e) {
+			addresses.putNoSuchDomain(username, generation);
+			throw e;
+		}
+		addresses.putAddress(username, address, generation);
+		return address;
+	}
+
+	/**
+	 * Asks the zone of the user directly if its stub is known, otherwise lets
+	 * the root resolve the whole name. Either way it is one remote call.
+	 */
+	private String resolve(String username) throws RemoteException, NotBoundException, InvalidDomainException {
+		String zone = zoneNameOf(username);
+		INameserverForChatserver replica = zone.isEmpty() ? null : cachedZone(zone);
+		try {
+			if (replica != null)
+				return replica.lookup(labelOf(username));
+			return getRoot().resolve(username);
+		} catch (RemoteException e) {
+			drop(replica == null ? "" : zone, replica);
+			throw e;
+		}
+	}
+
+	public void registerUser(String username, String address) throws RemoteException, NotBoundException,
+			AlreadyRegisteredException, InvalidDomainException {
+		try {
+			try {
+				registerAt(username, address);
+			} catch (RemoteException e) {
+				// retry once, without the nameserver that failed
+				registerAt(username, address);
+			}
+		} finally {
+			// after the change; lookups that started before it do not cache what they read
+			addresses.invalidate(username);
+		}
+	}
+
+	private void registerAt(String username, String address) throws RemoteException, NotBoundException,
+			AlreadyRegisteredException, InvalidDomainException {
+		INameserverForChatserver zone = zoneOf(username);
+		try {
+			zone.registerUser(labelOf(username), address);
+		} catch (RemoteException e) {
+			drop(zoneNameOf(username), zone);
+			throw e;
+		}
+	}
+
+	/**
+	 * Registers many addresses with one remote call per zone.
+	 * 
+	 * @return the usernames that could not be registered because their
+	 *         domain is invalid or does not exist
+	 */
+	public Set<String> registerUsers(Map<String, String> userAddresses) throws RemoteException, NotBoundException {
+		Set<String> failed = new HashSet<>();
+		Map<String, Map<String, String>> byZone = new HashMap<>();
+		for (Map.Entry<String, String> entry : userAddresses.entrySet()) {
+			if (DomainNames.split(entry.getKey()) == DomainNames.INVALID) {
+				failed.add(entry.getKey());
+				continue;
+			}
+			String zone = zoneNameOf(entry.getKey());
+			if (!byZone.containsKey(zone))
+				byZone.put(zone, new HashMap<String, String>());
+			byZone.get(zone).put(labelOf(entry.getKey()), entry.getValue());
+		}
+
+		try {
+			for (Map.Entry<String, Map<String, String>> entry : byZone.entrySet()) {
+				String suffix = entry.getKey().isEmpty() ? "" : "." + entry.getKey();
+				INameserverForChatserver zone = getZone(entry.getKey());
+				if (zone == null) {
+					for (String label : entry.getValue().keySet()) {
+						failed.add(label + suffix);
+					}
+					continue;
+				}
+				Set<String> failedInZone;
+				try {
+					failedInZone = zone.registerUsers(entry.getValue());
+				} catch (RemoteException e) {
+					drop(entry.getKey(), zone);
+					throw e;
+				}
+				for (String label : failedInZone) {
+					failed.add(label + suffix);
+				}
+			}
+		} finally {
+			for (String username : userAddresses.keySet()) {
+				addresses.invalidate(username);
+			}
+		}
+		return failed;
+	}
+
+	private INameserverForChatserver zoneOf(String username) throws RemoteException, NotBoundException,
+			InvalidDomainException {
+		INameserverForChatserver zone = DomainNames.split(username) == DomainNames.INVALID ? null
+				: getZone(zoneNameOf(username));
+		if (zone == null)
+			throw new InvalidDomainException("The domain does not exist");
+		return zone;
+	}
+
+	/**
+	 * @return the zone of a username whose domain is valid
+	 */
+	private static String zoneNameOf(String username) {
+		return DomainNames.zone(username, DomainNames.split(username));
+	}
+
+	private static String labelOf(String username) {
+		return DomainNames.label(username, username.indexOf('.'));
+	}
+
+	private static class CachedZone {
+		private final CopyOnWriteArrayList<INameserverForChatserver> replicas;
+		private final AtomicInteger next = new AtomicInteger();
+		private final long expires;
+
+		CachedZone(List<? extends INameserverForChatserver> replicas, long expires) {
+			this.replicas = new CopyOnWriteArrayList<>(replicas);
+			this.expires = expires;
+		}
+
+		/**
+		 * @return the replica whose turn it is, or {@code null} if all of
+		 *         them were dropped
+		 */
+		INameserverForChatserver next() {
+			Object[] current = replicas.toArray();
+			if (current.length == 0)
+				return null;
+			return (INameserverForChatserver) current[(next.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+		}
+
+		/**
+		 * @return whether no replica is left
+		 */
+		boolean remove(INameserverForChatserver replica) {
+			replicas.remove(replica);
+			return replicas.isEmpty();
+		}
+	}
+}
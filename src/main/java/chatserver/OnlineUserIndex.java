@@ -0,0 +1,120 @@
+package chatserver;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The users that are currently online, sorted by username. The serialized
+ * {@code !list} response is built at most once per change of membership and
+ * shared by all requests in between.
+ */
+public class OnlineUserIndex {
+
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private ConcurrentSkipListMap<String, User> online = new ConcurrentSkipListMap<>();
+	private AtomicInteger version = new AtomicInteger();
+	private AtomicLong snapshots = new AtomicLong();
+	private volatile Snapshot snapshot;
+
+	public void add(User user) {
+		if (online.put(user.getUsername(), user) == null)
+			version.incrementAndGet();
+	}
+
+	public void remove(User user) {
+		if (online.remove(user.getUsername()) != null)
+			version.incrementAndGet();
+	}
+
+	public void clear() {
+		online.clear();
+		version.incrementAndGet();
+	}
+
+	public int size() {
+		return online.size();
+	}
+
+	/**
+	 * @return the encoded {@code !list} response; callers must not modify
+	 *         the returned array
+	 */
+	public byte[] getListResponse() {
+		return currentSnapshot().response;
+	}
+
+	/**
+	 * Splits the {@code !list} response into datagrams of at most
+	 * {@code chunkSize} payload bytes. Every datagram starts with the line
+	 * {@code !chunk <snapshot> <index> <count>} so the client can reassemble
+	 * them in any order. The snapshot id differs between responses with
+	 * different contents, so chunks of a list from before a login or logout
+	 * are never mixed with chunks of the list from after it.
+	 * 
+	 * @return the encoded datagrams; callers must not modify them
+	 */
+	public byte[][] getListChunks(int chunkSize) {
+		Snapshot s = currentSnapshot();
+		byte[][] chunks = s.chunks;
+		if (chunks == null || s.chunkSize != chunkSize) {
+			chunks = split(s.id, s.response, chunkSize);
+			s.chunkSize = chunkSize;
+			s.chunks = chunks;
+		}
+		return chunks;
+	}
+
+	private Snapshot currentSnapshot() {
+		int current = version.get();
+		Snapshot s = snapshot;
+		if (s != null && s.version == current)
+			return s;
+
+		s = new Snapshot(snapshots.incrementAndGet(), current, build().getBytes(CHARSET));
+		// only cache if nobody logged in or out while we were building
+		if (version.get() == current)
+			snapshot = s;
+		return s;
+	}
+
+	private static byte[][] split(long id, byte[] response, int chunkSize) {
+		int count = Math.max(1, (response.length + chunkSize - 1) / chunkSize);
+		byte[][] chunks = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			byte[] header = ("!chunk " + id + " " + i + " " + count + "\n").getBytes(CHARSET);
+			int offset = i * chunkSize;
+			int length = Math.min(chunkSize, response.length - offset);
+			chunks[i] = new byte[header.length + length];
+			System.arraycopy(header, 0, chunks[i], 0, header.length);
+			System.arraycopy(response, offset, chunks[i], header.length, length);
+		}
+		return chunks;
+	}
+
+	private String build() {
+		if (online.isEmpty())
+			return "There are no online users.";
+		StringBuilder result = new StringBuilder("Online users: \n");
+		for (User u : online.values()) {
+			result.append(u).append('\n');
+		}
+		return result.toString();
+	}
+
+	private static class Snapshot {
+		private final long id;
+		private final int version;
+		private final byte[] response;
+		private volatile int chunkSize;
+		private volatile byte[][] chunks;
+
+		Snapshot(long id, int version, byte[] response) {
+			this.id = id;
+			this.version = version;
+			this.response = response;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Bounded queue of encoded lines waiting to be written to one client.
+ * Responses to the client's own commands are always queued; public messages
+ * are subject to the {@link SlowConsumerPolicy}.
+ */
+public class OutboundQueue {
+
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private BlockingQueue<ByteBuffer> queue;
+	private SlowConsumerPolicy policy;
+
+	public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+		this.queue = new LinkedBlockingQueue<>(capacity);
+		this.policy = policy;
+	}
+
+	/**
+	 * Encodes a line once so that it can be shared by any number of
+	 * recipients.
+	 */
+	public static ByteBuffer encode(String line) {
+		return ByteBuffer.wrap((line + "\n").getBytes(CHARSET)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Queues a response, waiting for room if necessary.
+	 */
+	public void put(ByteBuffer line) throws InterruptedException {
+		queue.put(line.duplicate());
+	}
+
+	/**
+	 * Queues a line that is shared with other recipients.
+	 * 
+	 * @return {@code false} if the queue is full and the policy demands that
+	 *         the consumer is disconnected
+	 */
+	public boolean offer(ByteBuffer line) throws InterruptedException {
+		switch (policy) {
+		case BLOCK:
+			queue.put(line.duplicate());
+			return true;
+		case DISCONNECT:
+			return queue.offer(line.duplicate());
+		default:
+			queue.offer(line.duplicate());
+			return true;
+		}
+	}
+
+	public ByteBuffer peek() {
+		return queue.peek();
+	}
+
+	public ByteBuffer poll() {
+		return queue.poll();
+	}
+
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	public void clear() {
+		queue.clear();
+	}
+}
@@ -0,0 +1,355 @@
+package chatserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking alternative to {@link TCPListenerThread}. Accepted channels are
+ * spread over a few {@link EventLoop}s which only do socket I/O; complete
+ * command lines are handed to {@link ClientThread#handle(String)} on a
+ * bounded worker pool. Idle sessions therefore cost a selection key and a
+ * buffer instead of a thread.
+ */
+public class SelectorListenerThread extends Thread {
+
+	private static final Charset CHARSET = Charset.defaultCharset();
+	/** sessions sending longer lines are closed instead of buffering them */
+	private static final int MAX_LINE_LENGTH = 1 << 16;
+
+	private ServerSocketChannel serverChannel;
+	private Chatserver chatserver;
+	private EventLoop[] loops;
+	private ExecutorService workers;
+	private int queueCapacity;
+	private SlowConsumerPolicy policy;
+	private SessionRegistry sessions;
+
+	public SelectorListenerThread(ServerSocketChannel serverChannel, Chatserver chatserver, SessionRegistry sessions,
+			int selectors, int workers, int queueCapacity, SlowConsumerPolicy policy) throws IOException {
+		this.serverChannel = serverChannel;
+		this.chatserver = chatserver;
+		this.sessions = sessions;
+		this.queueCapacity = queueCapacity;
+		this.policy = policy;
+		this.workers = Executors.newFixedThreadPool(workers);
+		this.loops = new EventLoop[selectors];
+		for (int i = 0; i < selectors; i++) {
+			loops[i] = new EventLoop(Selector.open());
+		}
+	}
+
+	@Override
+	public void run() {
+		for (EventLoop loop : loops) {
+			loop.start();
+		}
+		try {
+			int next = 0;
+			while (true) {
+				SocketChannel channel = serverChannel.accept();
+				try {
+					channel.configureBlocking(false);
+				} catch (IOException e) {
+					// only this connection is lost
+					channel.close();
+					continue;
+				}
+				loops[next++ % loops.length].register(channel);
+			}
+		} catch (IOException e) {
+			this.chatserver.getUserResponseStream().println("TCP socket closed. Stop listening for connections.");
+		}
+	}
+
+	public void exit() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			// nothing can be done about it
+		}
+		for (EventLoop loop : loops) {
+			loop.exit();
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * Owns one {@link Selector} and performs all reads and writes of the
+	 * sessions registered with it.
+	 */
+	private class EventLoop extends Thread {
+
+		private Selector selector;
+		private Queue<ChannelSession> pending = new ConcurrentLinkedQueue<>();
+		private volatile boolean exiting = false;
+
+		public EventLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		public void register(SocketChannel channel) {
+			ChannelSession session = new ChannelSession(channel, this);
+			session.handler.register();
+			pending.add(session);
+			selector.wakeup();
+		}
+
+		public void requestWrite(ChannelSession session) {
+			pending.add(session);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!exiting) {
+					selector.select();
+					if (exiting)
+						break;
+					processPending();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						ChannelSession session = (ChannelSession) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable())
+								session.read();
+							if (key.isValid() && key.isWritable())
+								session.write();
+						} catch (IOException e) {
+							session.close(e.getMessage());
+						} catch (CancelledKeyException e) {
+							// a worker closed the session meanwhile
+							session.close("Connection closed by server");
+						}
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				// selector closed during shutdown
+			} finally {
+				closeAll();
+			}
+		}
+
+		private void processPending() {
+			ChannelSession session;
+			while ((session = pending.poll()) != null) {
+				try {
+					if (session.key == null) {
+						session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+					} else if (session.key.isValid()) {
+						session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}
+				} catch (IOException e) {
+					session.close(e.getMessage());
+				} catch (CancelledKeyException e) {
+					// closed between the check and the update
+					session.close("Connection closed by server");
+				}
+			}
+		}
+
+		/**
+		 * Lets the loop close its sessions and the selector itself, as the
+		 * selector's key sets must not change while the loop iterates them.
+		 */
+		public void exit() {
+			exiting = true;
+			selector.wakeup();
+			try {
+				join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void closeAll() {
+			if (!selector.isOpen())
+				return;
+			for (SelectionKey key : selector.keys()) {
+				((ChannelSession) key.attachment()).close("Server shutting down");
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// nothing can be done about it
+			}
+		}
+	}
+
+	/**
+	 * Per-connection state: partial input line, commands waiting for a
+	 * worker, and outgoing buffers waiting for the channel to become
+	 * writable.
+	 */
+	private class ChannelSession implements Connection, Runnable {
+
+		private SocketChannel channel;
+		private EventLoop loop;
+		private volatile SelectionKey key;
+		private ClientThread handler;
+		private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+		private ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private Queue<String> inbound = new ConcurrentLinkedQueue<>();
+		private OutboundQueue outbound = new OutboundQueue(queueCapacity, policy);
+		private AtomicBoolean scheduled = new AtomicBoolean();
+		private AtomicBoolean writeRequested = new AtomicBoolean();
+		private AtomicBoolean closed = new AtomicBoolean();
+
+		public ChannelSession(SocketChannel channel, EventLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+			this.handler = new ClientThread(this, chatserver, sessions);
+		}
+
+		/**
+		 * Called by the event loop when the channel is readable.
+		 */
+		public void read() throws IOException {
+			int n = channel.read(readBuffer);
+			if (n < 0) {
+				close("Connection closed by client");
+				return;
+			}
+			readBuffer.flip();
+			while (readBuffer.hasRemaining()) {
+				byte b = readBuffer.get();
+				if (b == '\n') {
+					byte[] bytes = line.toByteArray();
+					int length = bytes.length;
+					if (length > 0 && bytes[length - 1] == '\r')
+						length--;
+					inbound.add(new String(bytes, 0, length, CHARSET));
+					line.reset();
+				} else if (line.size() < MAX_LINE_LENGTH) {
+					line.write(b);
+				} else {
+					close("Line too long");
+					return;
+				}
+			}
+			readBuffer.clear();
+			schedule();
+		}
+
+		/**
+		 * Hands queued commands to the worker pool unless a worker is already
+		 * busy with this session, so commands of one client stay in order.
+		 */
+		private void schedule() {
+			if (!inbound.isEmpty() && !closed.get() && scheduled.compareAndSet(false, true)) {
+				try {
+					workers.execute(this);
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			String input;
+			try {
+				while ((input = inbound.poll()) != null) {
+					handler.handle(input);
+				}
+			} catch (IOException e) {
+				close(e.getMessage());
+			} catch (RuntimeException e) {
+				// the session's state is unknown, and schedule() must still run
+				close("Internal error: " + e);
+			} finally {
+				scheduled.set(false);
+			}
+			schedule();
+		}
+
+		/**
+		 * Called by the event loop when the channel is writable. The key may
+		 * be cancelled by a worker at any time, so the interest updates can
+		 * throw a {@link CancelledKeyException}.
+		 */
+		public void write() throws IOException {
+			ByteBuffer buffer;
+			while ((buffer = outbound.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining())
+					return;
+				outbound.poll();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			writeRequested.set(false);
+			if (!outbound.isEmpty() && writeRequested.compareAndSet(false, true))
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		@Override
+		public void writeLine(String line) throws IOException {
+			if (closed.get())
+				throw new IOException("Socket is closed");
+			try {
+				outbound.put(OutboundQueue.encode(line));
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			requestWrite();
+		}
+
+		@Override
+		public void broadcast(ByteBuffer line) throws IOException {
+			if (closed.get())
+				throw new IOException("Socket is closed");
+			try {
+				if (!outbound.offer(line)) {
+					close("Client does not read its messages");
+					return;
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			requestWrite();
+		}
+
+		private void requestWrite() {
+			if (writeRequested.compareAndSet(false, true))
+				loop.requestWrite(this);
+		}
+
+		@Override
+		public void close() {
+			close("Connection closed by server");
+		}
+
+		public void close(String reason) {
+			if (!closed.compareAndSet(false, true))
+				return;
+			if (key != null)
+				key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing can be done about it
+			}
+			outbound.clear();
+			handler.connectionClosed(reason);
+		}
+	}
+}
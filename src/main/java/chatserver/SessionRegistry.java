@@ -0,0 +1,123 @@
+package chatserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * All open client sessions of a {@link Chatserver}, indexed by connection id
+ * and by the username they are logged in as. The collections handed out are
+ * live, weakly consistent views that may be iterated while sessions come and
+ * go.
+ */
+public class SessionRegistry {
+
+	private AtomicLong nextId = new AtomicLong();
+	private ConcurrentHashMap<Long, ClientThread> sessions = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<ClientThread, User> loggedIn = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String, Set<ClientThread>> byUser = new ConcurrentHashMap<>();
+	private OnlineUserIndex onlineUsers;
+
+	/**
+	 * @param onlineUsers
+	 *            the index to keep up to date when users log in and out
+	 */
+	public SessionRegistry(OnlineUserIndex onlineUsers) {
+		this.onlineUsers = onlineUsers;
+	}
+
+	/**
+	 * Adds a freshly accepted session.
+	 *
+	 * @return the connection id assigned to the session
+	 */
+	public long add(ClientThread session) {
+		long id = nextId.incrementAndGet();
+		sessions.put(id, session);
+		return id;
+	}
+
+	/**
+	 * Removes a closed session, logging it out first if necessary. Runs under
+	 * the same lock as {@link #login(User, ClientThread)}, so a login that
+	 * races with the close either is undone here or is refused.
+	 */
+	public synchronized void remove(ClientThread session) {
+		User user = loggedIn.get(session);
+		if (user != null)
+			logout(user, session);
+		sessions.remove(session.getSessionId());
+	}
+
+	public ClientThread get(long id) {
+		return sessions.get(id);
+	}
+
+	/**
+	 * Marks the user as online and remembers that the session belongs to the
+	 * user.
+	 *
+	 * @return {@code false} if the session was closed meanwhile; the user is
+	 *         not logged in then
+	 */
+	public synchronized boolean login(User user, ClientThread session) {
+		if (sessions.get(session.getSessionId()) != session)
+			return false;
+		Set<ClientThread> userSessions = byUser.get(user.getUsername());
+		if (userSessions == null) {
+			userSessions = Collections.newSetFromMap(new ConcurrentHashMap<ClientThread, Boolean>());
+			byUser.put(user.getUsername(), userSessions);
+		}
+		userSessions.add(session);
+		loggedIn.put(session, user);
+		user.setOnline(true);
+		onlineUsers.add(user);
+		return true;
+	}
+
+	/**
+	 * Forgets that the session belongs to the user. The user stays online
+	 * while logged in through another session.
+	 *
+	 * @return whether the user is still logged in elsewhere
+	 */
+	public synchronized boolean logout(User user, ClientThread session) {
+		loggedIn.remove(session);
+		Set<ClientThread> userSessions = byUser.get(user.getUsername());
+		if (userSessions != null) {
+			userSessions.remove(session);
+			if (userSessions.isEmpty())
+				byUser.remove(user.getUsername());
+		}
+		boolean elsewhere = byUser.containsKey(user.getUsername());
+		if (!elsewhere) {
+			onlineUsers.remove(user);
+			user.setOnline(false);
+		}
+		return elsewhere;
+	}
+
+	public boolean isLoggedIn(String username) {
+		return byUser.containsKey(username);
+	}
+
+	/**
+	 * @return all open sessions
+	 */
+	public Collection<ClientThread> getSessions() {
+		return sessions.values();
+	}
+
+	/**
+	 * @return the sessions that currently have a user logged in
+	 */
+	public Collection<ClientThread> getLoggedInSessions() {
+		return loggedIn.keySet();
+	}
+
+	public int size() {
+		return sessions.size();
+	}
+}
@@ -0,0 +1,21 @@
+package chatserver;
+
+/**
+ * What happens to a public message when the outbound queue of a recipient is
+ * full, i.e. the client does not read fast enough.
+ */
+public enum SlowConsumerPolicy {
+
+	/** The message is not delivered to this recipient. */
+	DROP,
+
+	/** The recipient's connection is closed. */
+	DISCONNECT,
+
+	/** The sender waits until the recipient's queue has room again. */
+	BLOCK;
+
+	public static SlowConsumerPolicy parse(String name) {
+		return valueOf(name.trim().toUpperCase());
+	}
+}
@@ -0,0 +1,101 @@
+package chatserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link Connection} on top of a blocking {@link Socket}. Queued lines are
+ * written by a task on the shared writer pool, so a client that does not
+ * read only ever blocks that task.
+ */
+public class SocketConnection implements Connection, Runnable {
+
+	private Socket socket;
+	private WritableByteChannel out;
+	private ExecutorService writers;
+	private OutboundQueue outbound;
+	private AtomicBoolean scheduled = new AtomicBoolean();
+
+	public SocketConnection(Socket socket, ExecutorService writers, OutboundQueue outbound) throws IOException {
+		this.socket = socket;
+		this.out = Channels.newChannel(socket.getOutputStream());
+		this.writers = writers;
+		this.outbound = outbound;
+	}
+
+	@Override
+	public void writeLine(String line) throws IOException {
+		if (socket.isClosed())
+			throw new IOException("Socket is closed");
+		try {
+			outbound.put(OutboundQueue.encode(line));
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		schedule();
+	}
+
+	@Override
+	public void broadcast(ByteBuffer line) throws IOException {
+		if (socket.isClosed())
+			throw new IOException("Socket is closed");
+		try {
+			if (!outbound.offer(line)) {
+				close();
+				return;
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		schedule();
+	}
+
+	private void schedule() {
+		if (!outbound.isEmpty() && scheduled.compareAndSet(false, true)) {
+			try {
+				writers.execute(this);
+			} catch (RejectedExecutionException e) {
+				scheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Drains the outbound queue.
+	 */
+	@Override
+	public void run() {
+		ByteBuffer line;
+		try {
+			while ((line = outbound.poll()) != null) {
+				while (line.hasRemaining()) {
+					out.write(line);
+				}
+			}
+		} catch (IOException e) {
+			close();
+		} finally {
+			scheduled.set(false);
+		}
+		if (!socket.isClosed())
+			schedule();
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing can be done about it
+		}
+		outbound.clear();
+	}
+
+}
@@ -3,34 +3,75 @@ package chatserver;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import util.VirtualThreads;
+
 public class TCPListenerThread extends Thread {
 
 	ServerSocket serverSocket;
 	Chatserver chatserver;
 	ExecutorService exec;
-	List<ClientThread> clientThreads = new ArrayList<>();
-	List<Socket> clientSockets = new ArrayList<>();
+	ExecutorService writers;
+	int queueCapacity;
+	SlowConsumerPolicy policy;
+	SessionRegistry sessions;
 
-	public TCPListenerThread(ServerSocket serverSocket, Chatserver chatserver) {
+	/**
+	 * @param threads
+	 *            how each {@link ClientThread} is executed: "virtual" runs
+	 *            every session on its own virtual thread, "pool" uses a fixed
+	 *            pool of {@code workers} platform threads
+	 * @param workers
+	 *            the size of the fixed pool
+	 * @param queueCapacity
+	 *            the number of lines that may wait for each client
+	 * @param policy
+	 *            what to do with public messages for a client whose queue is
+	 *            full
+	 */
+	public TCPListenerThread(ServerSocket serverSocket, Chatserver chatserver, SessionRegistry sessions,
+			String threads, int workers, int queueCapacity, SlowConsumerPolicy policy) {
 		this.chatserver = chatserver;
 		this.serverSocket = serverSocket;
+		this.sessions = sessions;
+		this.queueCapacity = queueCapacity;
+		this.policy = policy;
+		if (threads.equals("virtual")) {
+			exec = newVirtualThreadPerTaskExecutor();
+			writers = exec;
+		} else {
+			exec = Executors.newFixedThreadPool(workers);
+			// the pool is occupied by blocking readers, writing needs its own threads
+			writers = Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * On runtimes without virtual threads every session gets its own
+	 * platform thread instead, which at least never leaves a connected
+	 * client without service.
+	 */
+	private ExecutorService newVirtualThreadPerTaskExecutor() {
+		ExecutorService virtual = VirtualThreads.newPerTaskExecutor();
+		if (virtual != null)
+			return virtual;
+		this.chatserver.getUserResponseStream().println(
+				"Virtual threads are not supported by this JVM, using one platform thread per client.");
+		return Executors.newCachedThreadPool();
 	}
 
 	@Override
 	public void run() {
 		try {
-			exec = Executors.newFixedThreadPool(20);
 			while (true) {
 				Socket clientSocket = serverSocket.accept();
-				ClientThread c = new ClientThread(clientSocket, chatserver, clientThreads);
-				clientThreads.add(c);
-				clientSockets.add(clientSocket);
-				exec.execute(c);
+				Connection connection = new SocketConnection(clientSocket, writers, new OutboundQueue(queueCapacity,
+						policy));
+				ClientThread session = new ClientThread(clientSocket, connection, chatserver, sessions);
+				session.register();
+				exec.execute(session);
 			}
 
 		} catch (IOException e) {
@@ -44,14 +85,10 @@ public class TCPListenerThread extends Thread {
 		} catch (IOException e) {
 			// nothing can be done about it
 		}
-		for (Socket s : clientSockets) {
-			if (s != null && !s.isClosed())
-				try {
-					s.close();
-				} catch (IOException e) {
-					// nothing can be done about it
-				}
+		for (ClientThread c : sessions.getSessions()) {
+			c.getConnection().close();
 		}
 		exec.shutdown();
+		writers.shutdown();
 	}
 }
@@ -3,52 +3,142 @@ package chatserver;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
 
 
 public class UDPListenerThread extends Thread{
+	private static final byte[] ERROR = "!error provided command is not !list".getBytes();
+	private static final byte[] LIST = "!list".getBytes();
+	private static final byte[] LIST_CHUNKED = "!list chunked".getBytes();
+	private static final byte[] TOO_LONG = "!error the list does not fit into one datagram, use !list chunked"
+			.getBytes();
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+
 	private DatagramSocket datagramSocket;
 	private Chatserver chatserver;
+	private int chunkSize;
+	private int receiver;
+	// holds a response behind the id of a tagged request
+	private byte[] tagged = new byte[0];
 
-	public UDPListenerThread(DatagramSocket datagramSocket, Chatserver chatserver) {
+	/**
+	 * @param chunkSize
+	 *            the maximum number of payload bytes per datagram when a
+	 *            client asks for a chunked {@code !list} response
+	 * @param receiver
+	 *            the number of this thread among all threads receiving from
+	 *            the same socket
+	 */
+	public UDPListenerThread(DatagramSocket datagramSocket, Chatserver chatserver, int chunkSize, int receiver) {
+		super("udp-receiver-" + receiver);
 		this.datagramSocket = datagramSocket;
 		this.chatserver = chatserver;
+		this.chunkSize = chunkSize;
+		this.receiver = receiver;
 	}
 
 	public void run() {
 
-		byte[] buffer;
-		DatagramPacket packet;
+		// requests are tiny, one receive buffer is reused for all of them
+		byte[] buffer = new byte[1024];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		DatagramPacket reply = new DatagramPacket(new byte[0], 0);
 		try {
 			while (true) {
-				buffer = new byte[1024];
-
-				packet = new DatagramPacket(buffer, buffer.length);
+				packet.setLength(buffer.length);
 
 				// wait for incoming packets from client
 				datagramSocket.receive(packet);
-				// get the data from the packet
-				String request = new String(packet.getData());
-
-				String response = "!error provided command is not !list";
-				
-				if (request.startsWith("!list")){
-						response = chatserver.getOnlineUsers();
-				}		
-				InetAddress address = packet.getAddress();
-				int port = packet.getPort();
-				buffer = response.getBytes();
-
-				packet = new DatagramPacket(buffer, buffer.length, address, port);
-				// finally send the packet
-				datagramSocket.send(packet);
+				try {
+					answer(packet, reply);
+				} catch (IOException e) {
+					if (datagramSocket.isClosed())
+						throw e;
+					// only the response to this request is lost
+				}
 			}
 
 		} catch (IOException e) {
-			System.out.println("UDP socket closed. Stop listening for connections.");
+			if (receiver == 0)
+				System.out.println("UDP socket closed. Stop listening for connections.");
 			//udp connection was interrupted
 		}
 	}
+
+	private void answer(DatagramPacket packet, DatagramPacket reply) throws IOException {
+		byte[] buffer = packet.getData();
+		reply.setSocketAddress(packet.getSocketAddress());
+
+		int length = trimmedLength(buffer, packet.getLength());
+		// "#<id> " in front of a request is repeated in front of every datagram of its response
+		int command = idLength(buffer, length);
+		if (equals(buffer, command, length, LIST_CHUNKED)) {
+			// older clients only read one datagram, so chunks are only sent on request
+			for (byte[] chunk : chatserver.getOnlineUsersChunks(chunkSize)) {
+				send(reply, buffer, command, chunk);
+			}
+			return;
+		}
+
+		byte[] response = ERROR;
+		if (startsWith(buffer, command, length, LIST)){
+				response = chatserver.getOnlineUsers();
+				if (command + response.length > MAX_DATAGRAM_SIZE)
+					response = TOO_LONG;
+		}		
+		// finally send the packet
+		send(reply, buffer, command, response);
+	}
+
+	/**
+	 * Sends the response, behind the first {@code idLength} bytes of the
+	 * request if there are any.
+	 */
+	private void send(DatagramPacket reply, byte[] request, int idLength, byte[] response) throws IOException {
+		if (idLength == 0) {
+			reply.setData(response);
+		} else {
+			if (tagged.length < idLength + response.length)
+				tagged = new byte[idLength + response.length];
+			System.arraycopy(request, 0, tagged, 0, idLength);
+			System.arraycopy(response, 0, tagged, idLength, response.length);
+			reply.setData(tagged, 0, idLength + response.length);
+		}
+		datagramSocket.send(reply);
+	}
+
+	/**
+	 * @return the length of the leading {@code #<id> } including the space,
+	 *         or 0 if the request has no id
+	 */
+	private static int idLength(byte[] data, int length) {
+		if (length == 0 || data[0] != '#')
+			return 0;
+		for (int i = 1; i < length; i++) {
+			if (data[i] == ' ')
+				return i + 1;
+		}
+		return 0;
+	}
+
+	private static int trimmedLength(byte[] data, int length) {
+		while (length > 0 && (data[length - 1] == '\n' || data[length - 1] == '\r' || data[length - 1] == 0))
+			length--;
+		return length;
+	}
+
+	private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+		if (length - offset < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[offset + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean equals(byte[] data, int offset, int length, byte[] other) {
+		return length - offset == other.length && startsWith(data, offset, length, other);
+	}
 	
 	public void exit(){
 		if(datagramSocket != null)
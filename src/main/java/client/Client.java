@@ -1,35 +1,48 @@
 package client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
-import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.MessageDigest;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-
-import javax.crypto.Mac;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.bouncycastle.util.encoders.Base64;
 
 import util.Config;
+import util.HmacService;
 import util.Keys;
+import util.VirtualThreads;
 
 public class Client implements IClientCli, Runnable {
 
+	/** what private messages are signed with in front of their text */
+	private static final ByteBuffer SIGNED_PREFIX = ByteBuffer.wrap("!msg ".getBytes(StandardCharsets.UTF_8))
+			.asReadOnlyBuffer();
+
 	private String componentName;
 	private Config config;
 	private InputStream userRequestStream;
@@ -39,7 +52,6 @@ public class Client implements IClientCli, Runnable {
 	private Socket socket;
 	private DatagramSocket datagramSocket;
 	private ServerSocket privateSocket;
-	private DatagramPacket packet;
 	private String input;
 	private BufferedReader userIn;
 	private InputHandler inHandler;
@@ -48,9 +60,14 @@ public class Client implements IClientCli, Runnable {
 	private String host;
 	private boolean shutdown = false;
 	private Key secretKey;
-	private Mac hMac;
+	private HmacService hmacs;
+	private PeerConnectionPool peers;
+	private ListRequester lists;
+	private ExecutorService privateSessions;
 	
-	private BlockingQueue<String> msgQueue = new LinkedBlockingQueue<>();
+	private AtomicLong nextId = new AtomicLong();
+	private ConcurrentHashMap<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+	private volatile boolean connectionLost = false;
 	
 	/**
 	 * @param componentName
@@ -77,13 +94,8 @@ public class Client implements IClientCli, Runnable {
 		}
 		
 		try {
-			this.hMac = Mac.getInstance("HmacSHA256");
-			this.hMac.init(this.secretKey);
-		} catch (InvalidKeyException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
+			this.hmacs = new HmacService(this.secretKey, "HmacSHA256", config.getInt("hmac.pool"));
+		} catch (GeneralSecurityException e) {
 			e.printStackTrace();
 		}
 	}
@@ -97,6 +109,12 @@ public class Client implements IClientCli, Runnable {
         try {
             this.socket = new Socket(host, tcpPortNumber);
             this.datagramSocket = new DatagramSocket();
+            this.lists = new ListRequester(datagramSocket, new InetSocketAddress(host, udpPortNumber),
+            		config.getInt("list.timeout"), config.getInt("list.attempts"));
+            this.peers = new PeerConnectionPool(hmacs, config.getString("private.format").equals("frames"),
+            		config.getInt("private.idle.timeout"),
+            		config.getInt("private.connect.timeout"), config.getInt("private.read.timeout"));
+            this.privateSessions = newPrivateSessionExecutor(config.getString("private.threads"));
             out = new PrintWriter(socket.getOutputStream(), true);
             in= new BufferedReader(new InputStreamReader(socket.getInputStream()));
             userIn = new BufferedReader(new InputStreamReader(this.userRequestStream));
@@ -134,100 +152,136 @@ public class Client implements IClientCli, Runnable {
 
 	@Override
 	public String login(String username, String password) throws IOException {
-			out.println("!login " + username + " " + password);
-        	try {
-				return msgQueue.take();
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-        	return null;
+		return call("!login " + username + " " + password);
 	}
 
 	@Override
 	public String logout() throws IOException {
-		out.println("!logout");
-    	try {
-			return msgQueue.take();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-    	return null;
+		return call("!logout");
 	}
 
 	@Override
 	public String send(String message) throws IOException {
-		out.println("!send" + " " + message);
-    	try {
-			return msgQueue.take();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-    	return null;
+		return call("!send" + " " + message);
 	}
 
+	/**
+	 * Waits for {@link #listAsync()}.
+	 */
 	@Override
 	public String list() throws IOException {
-		// TODO Auto-generated method stub
-		return null;
+		try {
+			return listAsync().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SocketTimeoutException)
+				return e.getCause().getMessage();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Asks the chatserver for the online users without waiting. Any number
+	 * of requests may be outstanding, each is matched with its own response.
+	 *
+	 * @return the response; it fails with a {@link SocketTimeoutException}
+	 *         if none arrived after {@code list.attempts} tries
+	 */
+	public CompletableFuture<String> listAsync() {
+		return lists.request();
 	}
 
 	@Override
 	public String msg(String username, String message) throws IOException {
-		out.println("!msg" + " " + username + " " + message);
-    	try {
-			return msgQueue.take();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-    	return null;
+		return call("!msg" + " " + username + " " + message);
 	}
 
 	@Override
 	public String lookup(String username) throws IOException {
-		out.println("!lookup" + " " + username);
-    	try {
-			return msgQueue.take();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-    	return null;
+		return call("!lookup" + " " + username);
 	}
 
 	@Override
 	public String register(String privateAddress) throws IOException {
-		out.println("!register" + " " + privateAddress);
-    	try {
-			return msgQueue.take();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-    	return null;
+		return call("!register" + " " + privateAddress);
 	}
 	
 	@Override
 	public String lastMsg() throws IOException {
-		out.println("!lastMsg");
-    	try {
-			return msgQueue.take();
+		return call("!lastMsg");
+	}
+	
+	/**
+	 * Sends a command without waiting for its reply, so that many commands
+	 * can be outstanding on the one connection. Replies are matched by the
+	 * correlation id the command is sent with and may arrive in any order.
+	 * 
+	 * @param command
+	 *            a command line such as {@code !lookup bill.de}
+	 * @return the reply; it fails with an {@link IOException} if the
+	 *         connection to the chatserver is lost
+	 */
+	public CompletableFuture<String> submit(String command) {
+		CompletableFuture<String> reply = new CompletableFuture<>();
+		long id = nextId.incrementAndGet();
+		pending.put(id, reply);
+		if (connectionLost) {
+			pending.remove(id);
+			reply.completeExceptionally(new IOException("Connection to the chatserver lost"));
+		} else {
+			out.println("#" + id + " " + command);
+		}
+		return reply;
+	}
+
+	private String call(String command) {
+		return await(submit(command));
+	}
+
+	/**
+	 * @return the reply, or {@code null} if the connection was lost
+	 */
+	private String await(CompletableFuture<String> reply) {
+		try {
+			return reply.get();
 		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// the MessageHandler already reported the lost connection
 		}
-    	return null;
+		return null;
 	}
 	
 	public PrintStream getUserResponseStream(){
 		return this.userResponseStream;
 	}
 	
-	protected Mac getHMAC() {
-		return this.hMac;
+	protected HmacService getHmacService() {
+		return this.hmacs;
+	}
+	
+	/**
+	 * "virtual" serves every private connection on a virtual thread of its
+	 * own, "platform" on a pooled daemon thread. Without virtual thread
+	 * support the platform threads are used.
+	 */
+	private ExecutorService newPrivateSessionExecutor(String threads) {
+		if (threads.equals("virtual")) {
+			ExecutorService virtual = VirtualThreads.newPerTaskExecutor();
+			if (virtual != null)
+				return virtual;
+			userResponseStream.println("Virtual threads are not supported by this JVM, using platform threads.");
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "private-session");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 	
 	protected Key getSecretKey() {
@@ -237,7 +291,7 @@ public class Client implements IClientCli, Runnable {
 	@Override
 	public String exit() throws IOException {
 		
-		if(msgQueue.isEmpty() || !msgQueue.peek().equals("null")){
+		if(!connectionLost){
 			logout();
 		}
 		shutdown = true;
@@ -251,6 +305,15 @@ public class Client implements IClientCli, Runnable {
 		if(privateSocket!=null && !privateSocket.isClosed())
 			privateSocket.close();
 		
+		if(peers != null)
+			peers.close();
+		
+		if(privateSessions != null)
+			privateSessions.shutdownNow();
+		
+		if(lists != null)
+			lists.close();
+		
 		if(datagramSocket != null && !datagramSocket.isClosed())
 			datagramSocket.close();
 		
@@ -287,21 +350,8 @@ public class Client implements IClientCli, Runnable {
 		return null;
 	}
 	
-	private class PacketListener extends Thread{
-		public void run(){
-				try {
-					datagramSocket.receive(packet);
-					userResponseStream.println(new String(packet.getData()));
-				} catch (IOException e) {
-					System.err.println("Socket closed. Stop waiting for package.");
-					
-				}
-			}
-	}
-	
 	private class InputHandler extends Thread {
 		public void run() {
-			byte[] buffer;
 			while (!shutdown) {
 				try {
 					input = userIn.readLine();
@@ -350,7 +400,8 @@ public class Client implements IClientCli, Runnable {
 									if (privateSocket != null && !privateSocket.isClosed()) {
 										privateSocket.close();
 									}
-									privateSocket = new ServerSocket(Integer.parseInt(parts[1].split(":")[1]));
+									privateSocket = new ServerSocket(Integer.parseInt(parts[1].split(":")[1]),
+											config.getInt("private.backlog"));
 									response = register(parts[1]);
 									if(response.contains("Sucessfully registered address")){
 										new PrivateListenerThread().start();
@@ -389,38 +440,33 @@ public class Client implements IClientCli, Runnable {
 								message += parts[i] + " ";
 							}
 							
-							response = msg(parts[1], message);
-							
-							String address = lookup(parts[1]);
-							if(address.contains("No such domain.")||address.contains("User does not have a registered address.")||address.contains("You must log in first!")||address.contains("Cannot communicate")){
+							//both commands go out at once and cost a single round trip
+							CompletableFuture<String> header = submit("!msg" + " " + parts[1] + " " + message);
+							CompletableFuture<String> lookup = submit("!lookup" + " " + parts[1]);
+							response = await(header);
+							String address = await(lookup);
+							if(response == null || address == null){
+								response = null;
+							}
+							else if(address.contains("No such domain.")||address.contains("User does not have a registered address.")||address.contains("You must log in first!")||address.contains("Cannot communicate")){
 								response = address;
 							}
 							else {
-								String[] addr = address.split(":");
-								Socket cs = new Socket(addr[0], Integer.parseInt(addr[1]));
-								PrintWriter out = new PrintWriter(cs.getOutputStream(), true);
-								BufferedReader in = new BufferedReader(new InputStreamReader(cs.getInputStream()));
-								
-								
-								String preparedMessage = "!msg " + message;
-								byte[] hash = Base64.encode(getHMAC().doFinal(preparedMessage.getBytes()));
-							    String hashToSend = new String(hash,StandardCharsets.UTF_8);		
-								out.println(hashToSend + ";" + response + message);
-								String inMessage = in.readLine();
-								if(inMessage.equals("!ack")) {
-									response = parts[1] + " replied with " + inMessage;
+							    //the chatserver answers "<sender> :"
+							    String sender = response.endsWith(" :") ? response.substring(0, response.length() - 2) : response;
+							    PeerConnectionPool.Reply reply;
+							    try{
+							    	reply = peers.send(address, sender, message);
+							    }catch(IOException e){
+							    	reply = null;
+							    }
+								if(reply == null) {
+									response = parts[1] + " cannot be reached.";
+								} else if(reply == PeerConnectionPool.Reply.ACKNOWLEDGED) {
+									response = parts[1] + " replied with !ack";
 								} else {
-									String[] parts2 = inMessage.split(";");
-									byte[] recievedHMAC = parts2[0].getBytes();
-									byte[] recievedHash = Base64.decode(recievedHMAC);
-									
-									byte[] newHash = getHMAC().doFinal(parts2[1].getBytes());
-									if(!(MessageDigest.isEqual(newHash, recievedHash)) || parts2[1].equals("!tampered")) {
-										response = "Your message was tampered by a third user.";
-									}
+									response = "Your message was tampered by a third user.";
 								}
-								
-								cs.close();
 							}	
 						}
 					}
@@ -428,16 +474,7 @@ public class Client implements IClientCli, Runnable {
 						response = lastMsg();
 					}
 					if(input.startsWith("!list")){
-						buffer = input.getBytes();
-						packet = new DatagramPacket(buffer, buffer.length,
-								InetAddress.getByName(host),
-								udpPortNumber);
-						datagramSocket.send(packet);
-						buffer = new byte[1024];
-						packet = new DatagramPacket(buffer, buffer.length);
-						new PacketListener().start();
-						continue;
-						
+						response = list();
 					}
 					
 					if(input.startsWith("!exit")){
@@ -464,8 +501,8 @@ public class Client implements IClientCli, Runnable {
 					if(msg!=null){
 						if(msg.startsWith("!public: ")){
 							userResponseStream.println(msg);
-						}else{
-							msgQueue.put(msg);
+						}else if(msg.startsWith("#")){
+							complete(msg);
 						}
 					}else{
 						close();
@@ -473,74 +510,152 @@ public class Client implements IClientCli, Runnable {
 					}
 				} catch (IOException e) {
 					close();
-				} catch (InterruptedException e) {
-					close();
 				}
 			}
 		}
+
+		/**
+		 * Hands a reply of the form "#id response" to whoever waits for it.
+		 */
+		private void complete(String msg){
+			int space = msg.indexOf(' ');
+			try{
+				long id = Long.parseLong(space < 0 ? msg.substring(1) : msg.substring(1, space));
+				CompletableFuture<String> reply = pending.remove(id);
+				if(reply != null)
+					reply.complete(space < 0 ? "" : msg.substring(space + 1));
+			}catch(NumberFormatException e){
+				userResponseStream.println(msg);
+			}
+		}
+
 		private void close(){
-			try {
-				msgQueue.put("null");
-			} catch (InterruptedException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
+			connectionLost = true;
+			for(Long id : pending.keySet()){
+				CompletableFuture<String> reply = pending.remove(id);
+				if(reply != null)
+					reply.completeExceptionally(new IOException("Connection to the chatserver lost"));
 			}
 			shutdown = true;
 			System.err.println("Problem with connection. Shutting down client now...");
 		}
 	}
 	
+	/**
+	 * Accepts the connections of peers and hands each to the private session
+	 * executor, so that accepting the next peer never waits for a message to
+	 * be verified.
+	 */
 	private class PrivateListenerThread extends Thread {
 
 		public void run() {
+			ServerSocket listener = privateSocket;
 			while (true) {
-				Socket socket = null;
 				try {
-					socket = privateSocket.accept();
-					BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-					PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-					
-					String request;
-					if ((request = reader.readLine()) != null) {
-						
-						//Spliting input into part0=recievedHash and part1=user+message
-						String[] parts = request.split(";");
-						//Get recieved Hash from part0
-						byte [] recievedHMAC = parts[0].getBytes();
-						byte [] recievedHash = Base64.decode(recievedHMAC);
-						
-						//Spliting part1 into part0 = user and part1 = message
-						String[] parts2 = parts[1].split(":");
-						
-						//Generating new Hash from message
-						String preparedMessage = "!msg " + parts2[1];
-						byte[] newHash = getHMAC().doFinal(preparedMessage.getBytes());
-						boolean equal = MessageDigest.isEqual(newHash, recievedHash);
-						if(MessageDigest.isEqual(newHash, recievedHash)) {
-							userResponseStream.println(parts[1]);
-							writer.println("!ack");
-						} else {
-							userResponseStream.println(parts[1]);
-							String responseMessage = "!tampered "+ parts2[1];
-							byte[] tamperedHash = Base64.encode(getHMAC().doFinal(responseMessage.getBytes()));
-							String tamperedHashToSend = new String(tamperedHash, StandardCharsets.UTF_8);
-							writer.println(tamperedHashToSend + ";" + "!tampered");
-						}
-					}
-
+					privateSessions.execute(new PrivateSession(listener.accept()));
+				} catch (RejectedExecutionException e) {
+					// the client is shutting down
+					break;
 				} catch (IOException e) {
 					//System.err.println("Socket closed. Stop listening for connections.");
 					break;
-				} finally {
-					if (socket != null && !socket.isClosed())
-						try {
-							socket.close();
-						} catch (IOException e) {
-							// Ignored because we cannot handle it
-						}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Answers the private messages a peer sends over one connection until
+	 * the peer closes it or stays silent for {@code private.idle.timeout}
+	 * milliseconds.
+	 */
+	private class PrivateSession implements Runnable {
+
+		private Socket socket;
+
+		PrivateSession(Socket socket) {
+			this.socket = socket;
+		}
+
+		public void run() {
+			try {
+				socket.setSoTimeout(config.getInt("private.idle.timeout"));
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+				
+				String request;
+				while ((request = PrivateFrames.readLine(in)) != null) {
+					String reply = reply(request);
+					PrivateFrames.writeLine(out, reply);
+					if (reply.equals(PrivateFrames.ACCEPT)) {
+						serveFrames(in, out);
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// closed or idle for too long, the peer reconnects if needed
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Ignored because we cannot handle it
+				}
+			}
+		}
 
+		/**
+		 * Answers the frames of a connection that switched to them. The
+		 * sender and text are printed straight from the frame's bytes.
+		 */
+		private void serveFrames(DataInputStream in, OutputStream out) throws IOException {
+			ByteBuffer frame;
+			while ((frame = PrivateFrames.read(in)) != null) {
+				if (PrivateFrames.type(frame) != PrivateFrames.MESSAGE)
+					throw new IOException("Unexpected frame type " + PrivateFrames.type(frame));
+				ByteBuffer sender = PrivateFrames.sender(frame);
+				ByteBuffer payload = PrivateFrames.payload(frame);
+				synchronized (userResponseStream) {
+					userResponseStream.write(sender.array(), sender.arrayOffset() + sender.position(), sender.remaining());
+					userResponseStream.print(" :");
+					userResponseStream.write(payload.array(), payload.arrayOffset() + payload.position(),
+							payload.remaining());
+					userResponseStream.println();
 				}
+				byte type = PrivateFrames.verify(hmacs, frame) ? PrivateFrames.ACK : PrivateFrames.TAMPERED;
+				PrivateFrames.write(out, PrivateFrames.reply(hmacs, type, PrivateFrames.tag(frame)));
+			}
+		}
 
+		/**
+		 * Prints a private message and returns the line to answer with. A
+		 * valid message that offers frames is accepted if frames are enabled.
+		 */
+		private String reply(String request) {
+			//part0=recievedHash, part1=user+message, part2=offer of frames
+			String[] parts = PrivateFrames.splitLine(request);
+			if (parts == null)
+				return "!tampered";
+			if (parts[2] != null && !PrivateFrames.isOffer(hmacs, parts[2], parts[0])) {
+				// the message itself ends like an offer
+				parts[1] = request.substring(parts[0].length() + 1);
+				parts[2] = null;
+			}
+			String message = parts[1].substring(parts[1].indexOf(':') + 1);
+			
+			userResponseStream.println(parts[1]);
+			byte[] recievedHash;
+			try {
+				recievedHash = Base64.decode(parts[0]);
+			} catch (RuntimeException e) {
+				recievedHash = new byte[0];
+			}
+			if(hmacs.verify(ByteBuffer.wrap(recievedHash), SIGNED_PREFIX.duplicate(), StandardCharsets.UTF_8.encode(message))) {
+				boolean frames = parts[2] != null && config.getString("private.format").equals("frames");
+				return frames ? PrivateFrames.ACCEPT : "!ack";
+			} else {
+				String tamperedHashToSend = new String(Base64.encode(hmacs.sign(
+						StandardCharsets.UTF_8.encode("!tampered " + message))), StandardCharsets.UTF_8);
+				return tamperedHashToSend + ";" + "!tampered";
 			}
 		}
 	}
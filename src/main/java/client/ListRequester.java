@@ -0,0 +1,273 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends {@code !list} requests to the chatserver over UDP. Every request
+ * carries an id ({@code #<id> !list chunked}) that the chatserver repeats in
+ * front of each datagram of the response, so a single receiving thread can
+ * hand the chunks to the right request. Requests whose response is not
+ * complete after {@code timeout} milliseconds are sent again, up to
+ * {@code attempts} times in all.
+ * <p/>
+ * The response is decoded with the default charset, as the chatserver
+ * encodes it with that.
+ */
+public class ListRequester {
+
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+
+	private DatagramSocket socket;
+	private SocketAddress server;
+	private long timeout;
+	private int attempts;
+	private AtomicLong nextId = new AtomicLong();
+	private ConcurrentHashMap<Long, Request> pending = new ConcurrentHashMap<>();
+	private ScheduledExecutorService timer;
+	private Thread receiver;
+	private volatile boolean closed;
+
+	/**
+	 * @param socket
+	 *            the socket to send from, nobody else may receive from it
+	 * @param server
+	 *            the chatserver's UDP address
+	 * @param timeout
+	 *            how long (in milliseconds) to wait for a complete response
+	 *            before asking again
+	 * @param attempts
+	 *            how often a request is sent at most
+	 */
+	public ListRequester(DatagramSocket socket, SocketAddress server, long timeout, int attempts) {
+		this.socket = socket;
+		this.server = server;
+		this.timeout = timeout;
+		this.attempts = attempts;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "list-retransmit");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.receiver = new Thread("list-receiver") {
+			@Override
+			public void run() {
+				receive();
+			}
+		};
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * Asks the chatserver for the online users.
+	 *
+	 * @return the response; it fails with a {@link SocketTimeoutException}
+	 *         if no complete response arrived after all attempts, and with an
+	 *         {@link IOException} if the requester is closed
+	 */
+	public CompletableFuture<String> request() {
+		final long id = nextId.incrementAndGet();
+		Request request = new Request(("#" + id + " !list chunked").getBytes(StandardCharsets.UTF_8));
+		pending.put(id, request);
+		try {
+			// checked after put, so that either this or close() fails the request
+			if (closed)
+				throw new IOException("Socket closed");
+			send(id, request);
+		} catch (IOException e) {
+			pending.remove(id);
+			request.future.completeExceptionally(e);
+		}
+		return request.future;
+	}
+
+	/**
+	 * Fails all unanswered requests. The receiving thread ends when the
+	 * socket is closed.
+	 */
+	public void close() {
+		closed = true;
+		timer.shutdownNow();
+		failAll(new IOException("Socket closed"));
+	}
+
+	private void send(final long id, Request request) throws IOException {
+		synchronized (request) {
+			request.attempts++;
+			socket.send(new DatagramPacket(request.data, request.data.length, server));
+			try {
+				request.retransmit = timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						retransmit(id);
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// closed meanwhile
+				throw new IOException("Socket closed");
+			}
+		}
+	}
+
+	private void retransmit(long id) {
+		Request request = pending.get(id);
+		if (request == null)
+			return;
+		synchronized (request) {
+			if (request.attempts < attempts) {
+				try {
+					send(id, request);
+					return;
+				} catch (IOException e) {
+					// given up below
+				}
+			}
+		}
+		if (pending.remove(id, request))
+			request.future.completeExceptionally(new SocketTimeoutException("No complete response to !list received."));
+	}
+
+	private void receive() {
+		byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+		DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+		try {
+			while (true) {
+				datagram.setLength(buffer.length);
+				socket.receive(datagram);
+				handle(buffer, datagram.getLength());
+			}
+		} catch (IOException e) {
+			failAll(e);
+		}
+	}
+
+	/**
+	 * Passes a datagram of the form {@code #<id> <response>} to its request.
+	 * Datagrams of requests that were answered or given up are dropped.
+	 */
+	private void handle(byte[] data, int length) {
+		int space = indexOf(data, 0, length, (byte) ' ');
+		if (space < 0 || data[0] != '#')
+			return;
+		long id;
+		try {
+			id = Long.parseLong(new String(data, 1, space - 1, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException e) {
+			return;
+		}
+		Request request = pending.get(id);
+		if (request == null)
+			return;
+
+		int start = space + 1;
+		int headerEnd = indexOf(data, start, length, (byte) '\n');
+		String[] header = headerEnd < 0 ? new String[0] : new String(data, start, headerEnd - start,
+				StandardCharsets.US_ASCII).split(" ");
+		String response;
+		if (header.length != 4 || !header[0].equals("!chunk")) {
+			// not chunked, e.g. an error message
+			response = new String(data, start, length - start, Charset.defaultCharset());
+		} else {
+			long snapshot;
+			int index;
+			int count;
+			try {
+				snapshot = Long.parseLong(header[1]);
+				index = Integer.parseInt(header[2]);
+				count = Integer.parseInt(header[3]);
+			} catch (NumberFormatException e) {
+				return;
+			}
+			response = request.add(snapshot, index, count, Arrays.copyOfRange(data, headerEnd + 1, length));
+			if (response == null)
+				return;
+		}
+		if (pending.remove(id, request)) {
+			request.cancelRetransmit();
+			request.future.complete(response);
+		}
+	}
+
+	private void failAll(IOException cause) {
+		for (Map.Entry<Long, Request> entry : pending.entrySet()) {
+			if (pending.remove(entry.getKey(), entry.getValue()))
+				entry.getValue().future.completeExceptionally(cause);
+		}
+	}
+
+	private static int indexOf(byte[] data, int from, int length, byte b) {
+		for (int i = from; i < length; i++) {
+			if (data[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	private static class Request {
+		final byte[] data;
+		final CompletableFuture<String> future = new CompletableFuture<>();
+		int attempts;
+		ScheduledFuture<?> retransmit;
+		long snapshot;
+		byte[][] chunks;
+		int received;
+
+		Request(byte[] data) {
+			this.data = data;
+		}
+
+		/**
+		 * Keeps a chunk of the response. Chunks from an earlier attempt are
+		 * kept as well, unless they belong to another snapshot of the list,
+		 * i.e. somebody logged in or out meanwhile.
+		 *
+		 * @return the whole response once all chunks arrived, otherwise
+		 *         {@code null}
+		 */
+		synchronized String add(long snapshot, int index, int count, byte[] chunk) {
+			if (index < 0 || index >= count)
+				return null;
+			if (chunks == null || this.snapshot != snapshot || chunks.length != count) {
+				this.snapshot = snapshot;
+				chunks = new byte[count][];
+				received = 0;
+			}
+			if (chunks[index] != null)
+				return null;
+			chunks[index] = chunk;
+			if (++received < count)
+				return null;
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			for (byte[] c : chunks) {
+				response.write(c, 0, c.length);
+			}
+			return new String(response.toByteArray(), Charset.defaultCharset());
+		}
+
+		synchronized void cancelRetransmit() {
+			if (retransmit != null)
+				retransmit.cancel(false);
+		}
+	}
+}
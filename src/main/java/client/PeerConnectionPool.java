@@ -0,0 +1,280 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import util.HmacService;
+
+/**
+ * Keeps one connection open per peer address for private messages, so that
+ * a burst of messages to the same user costs a single connect. Connections
+ * that were not used for {@code idleTimeout} milliseconds are closed.
+ * <p/>
+ * A connection carries one exchange at a time: a message is written and the
+ * peer's reply is read. Concurrent messages to the same peer take turns.
+ * <p/>
+ * Messages are sent as text lines that offer {@link PrivateFrames binary
+ * frames}. Once the peer accepts the offer, the connection continues in
+ * frames. Peers that only know the text format ignore it.
+ */
+public class PeerConnectionPool {
+
+	/**
+	 * What a peer answered to a private message.
+	 */
+	public enum Reply {
+		ACKNOWLEDGED, TAMPERED
+	}
+
+	/** what private messages are signed with in front of their text */
+	private static final ByteBuffer SIGNED_PREFIX = ByteBuffer.wrap("!msg ".getBytes(StandardCharsets.UTF_8))
+			.asReadOnlyBuffer();
+
+	private HmacService hmacs;
+	private boolean frames;
+	private long idleTimeout;
+	private int connectTimeout;
+	private int readTimeout;
+	private ConcurrentHashMap<String, PeerConnection> connections = new ConcurrentHashMap<>();
+	private ScheduledExecutorService evictor;
+
+	/**
+	 * @param hmacs
+	 *            signs the messages and checks the replies
+	 * @param frames
+	 *            whether to offer binary frames to peers, otherwise only text
+	 *            lines are sent
+	 * @param idleTimeout
+	 *            after how many milliseconds without a message a connection is
+	 *            closed
+	 * @param connectTimeout
+	 *            how long (in milliseconds) to wait for a peer to accept
+	 * @param readTimeout
+	 *            how long (in milliseconds) to wait for a peer's reply
+	 */
+	public PeerConnectionPool(HmacService hmacs, boolean frames, long idleTimeout, int connectTimeout,
+			int readTimeout) {
+		this.hmacs = hmacs;
+		this.frames = frames;
+		this.idleTimeout = idleTimeout;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "peer-connection-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(1, idleTimeout / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a signed private message to the peer and waits for its reply. A
+	 * pooled connection that the peer closed in the meantime is replaced. The
+	 * message is only sent again if writing it failed, otherwise the peer
+	 * might receive it twice.
+	 *
+	 * @param address
+	 *            the peer's private address, {@code host:port}
+	 * @param sender
+	 *            the name of the user sending the message
+	 * @return the reply, or {@code null} if the peer closed the connection
+	 *         without replying
+	 */
+	public Reply send(String address, String sender, String message) throws IOException {
+		PeerConnection connection = connections.get(address);
+		if (connection != null && connection.isClosedByPeer()) {
+			connections.remove(address, connection);
+			connection.close();
+			connection = null;
+		}
+		boolean reused = connection != null;
+		if (connection == null)
+			connection = connect(address);
+		try {
+			Reply reply = connection.send(sender, message);
+			if (reply == null)
+				discard(address, connection);
+			return reply;
+		} catch (IOException e) {
+			discard(address, connection);
+			if (!reused || connection.written)
+				throw e;
+		}
+		// the pooled connection broke before the message was out
+		return connect(address).send(sender, message);
+	}
+
+	private void discard(String address, PeerConnection connection) {
+		connections.remove(address, connection);
+		connection.close();
+	}
+
+	/**
+	 * Closes all connections.
+	 */
+	public void close() {
+		evictor.shutdownNow();
+		for (PeerConnection connection : connections.values()) {
+			connection.close();
+		}
+		connections.clear();
+	}
+
+	private PeerConnection connect(String address) throws IOException {
+		PeerConnection connection = open(address);
+		PeerConnection existing = connections.putIfAbsent(address, connection);
+		if (existing != null) {
+			// someone else connected at the same time
+			connection.close();
+			return existing;
+		}
+		return connection;
+	}
+
+	private PeerConnection open(String address) throws IOException {
+		int colon = address.lastIndexOf(':');
+		if (colon < 0)
+			throw new IOException("Not an address of the form host:port: " + address);
+		Socket socket = new Socket();
+		try {
+			socket.connect(
+					new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))),
+					connectTimeout);
+		} catch (IOException | NumberFormatException e) {
+			socket.close();
+			throw e instanceof IOException ? (IOException) e : new IOException("Invalid port in " + address);
+		}
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(readTimeout);
+		return new PeerConnection(socket);
+	}
+
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, PeerConnection> entry : connections.entrySet()) {
+			PeerConnection connection = entry.getValue();
+			if (connection.idleSince(now) >= idleTimeout && connections.remove(entry.getKey(), connection))
+				connection.close();
+		}
+	}
+
+	private class PeerConnection {
+		private final Socket socket;
+		private final OutputStream out;
+		private final DataInputStream in;
+		private boolean framed;
+		/** whether the last message was written completely */
+		private volatile boolean written;
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		PeerConnection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		}
+
+		/**
+		 * A peer never sends anything unasked, so anything readable before a
+		 * message is sent means that it closed the connection, e.g. because
+		 * it was idle for too long or only answers one message per
+		 * connection.
+		 */
+		synchronized boolean isClosedByPeer() {
+			try {
+				socket.setSoTimeout(1);
+				in.mark(1);
+				in.read();
+				in.reset();
+				return true;
+			} catch (SocketTimeoutException e) {
+				return false;
+			} catch (IOException e) {
+				return true;
+			} finally {
+				try {
+					socket.setSoTimeout(readTimeout);
+				} catch (IOException e) {
+					// closed, the next send fails
+				}
+			}
+		}
+
+		synchronized Reply send(String sender, String message) throws IOException {
+			lastUsed = System.currentTimeMillis();
+			written = false;
+			Reply reply = framed ? sendFrame(sender, message) : sendLine(sender, message);
+			lastUsed = System.currentTimeMillis();
+			return reply;
+		}
+
+		private Reply sendFrame(String sender, String message) throws IOException {
+			ByteBuffer frame = PrivateFrames.message(hmacs, StandardCharsets.UTF_8.encode(sender),
+					StandardCharsets.UTF_8.encode(message));
+			ByteBuffer tag = PrivateFrames.sentTag(frame);
+			PrivateFrames.write(out, frame);
+			written = true;
+			ByteBuffer reply = PrivateFrames.read(in);
+			if (reply == null)
+				return null;
+			if (PrivateFrames.type(reply) == PrivateFrames.ACK && PrivateFrames.verifyReply(hmacs, reply, tag))
+				return Reply.ACKNOWLEDGED;
+			return Reply.TAMPERED;
+		}
+
+		private Reply sendLine(String sender, String message) throws IOException {
+			String tag = new String(Base64.encode(hmacs.sign(SIGNED_PREFIX.duplicate(),
+					StandardCharsets.UTF_8.encode(message))), StandardCharsets.UTF_8);
+			String line = tag + ";" + sender + " :" + message;
+			if (frames)
+				line += ";" + PrivateFrames.offer(hmacs, tag);
+			PrivateFrames.writeLine(out, line);
+			written = true;
+			String reply = PrivateFrames.readLine(in);
+			if (reply == null)
+				return null;
+			if (frames && reply.equals(PrivateFrames.ACCEPT)) {
+				framed = true;
+				return Reply.ACKNOWLEDGED;
+			}
+			// a text peer signs its complaint, but any other answer is one as well
+			return reply.equals("!ack") ? Reply.ACKNOWLEDGED : Reply.TAMPERED;
+		}
+
+		long idleSince(long now) {
+			return now - lastUsed;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing can be done about it
+			}
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import util.HmacService;
+
+/**
+ * The formats of private messages between clients. A connection starts in
+ * the text format, one line {@code <Base64 HMAC>;<sender> :<message>} per
+ * message. A client that supports frames appends {@code ;!frames <Base64
+ * HMAC>} to its text messages, which older clients ignore. A receiver that
+ * supports them as well answers such a message with {@link #ACCEPT} instead of
+ * {@code !ack}, and both directions of the connection continue in frames:
+ *
+ * <pre>
+ * int    length of the rest of the frame
+ * byte   type: MESSAGE, ACK or TAMPERED
+ * 32     HMAC-SHA256 of the type and of everything after the tag
+ * short  length of the sender
+ * ...    sender, UTF-8
+ * ...    payload, UTF-8
+ * </pre>
+ *
+ * Replies carry neither sender nor payload, their HMAC also covers the tag of
+ * the message they answer. Read frames are kept in heap buffers whose
+ * position is the type byte, so the sender and payload are handed around as
+ * slices instead of being decoded.
+ */
+final class PrivateFrames {
+
+	static final String OFFER = "!frames";
+	/** the answer to a text message that offered frames */
+	static final String ACCEPT = "!ack;" + OFFER;
+
+	static final byte MESSAGE = 1;
+	static final byte ACK = 2;
+	static final byte TAMPERED = 3;
+
+	static final int TAG_LENGTH = 32;
+	/** frames longer than this are refused, a message is a single line */
+	static final int MAX_LENGTH = 1 << 20;
+
+	private static final int TYPE = 0;
+	private static final int TAG = 1;
+	private static final int BODY = TAG + TAG_LENGTH;
+
+	private PrivateFrames() {
+	}
+
+	/**
+	 * @return a frame of the type MESSAGE, positioned at its length
+	 */
+	static ByteBuffer message(HmacService hmacs, ByteBuffer sender, ByteBuffer payload) {
+		if (sender.remaining() > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Sender name too long");
+		int length = BODY + 2 + sender.remaining() + payload.remaining();
+		ByteBuffer frame = ByteBuffer.allocate(4 + length);
+		frame.putInt(length).put(MESSAGE).position(4 + BODY);
+		frame.putShort((short) sender.remaining()).put(sender).put(payload);
+		return sign(hmacs, frame);
+	}
+
+	/**
+	 * @param inReplyTo
+	 *            the tag of the message that is answered
+	 * @return a reply frame of the type ACK or TAMPERED, positioned at its
+	 *         length
+	 */
+	static ByteBuffer reply(HmacService hmacs, byte type, ByteBuffer inReplyTo) {
+		ByteBuffer frame = ByteBuffer.allocate(4 + BODY + 2);
+		frame.putInt(BODY + 2).put(type).position(4 + BODY);
+		frame.putShort((short) 0);
+		return sign(hmacs, frame, inReplyTo.duplicate());
+	}
+
+	private static ByteBuffer sign(HmacService hmacs, ByteBuffer frame, ByteBuffer... bound) {
+		frame.flip();
+		ByteBuffer[] data = new ByteBuffer[2 + bound.length];
+		data[0] = slice(frame, 4 + TYPE, 1);
+		data[1] = slice(frame, 4 + BODY, frame.limit() - 4 - BODY);
+		System.arraycopy(bound, 0, data, 2, bound.length);
+		byte[] tag = hmacs.sign(data);
+		System.arraycopy(tag, 0, frame.array(), 4 + TAG, TAG_LENGTH);
+		return frame;
+	}
+
+	/**
+	 * @return the tag of a frame built by this class, before it is written
+	 */
+	static ByteBuffer sentTag(ByteBuffer frame) {
+		return slice(frame, 4 + TAG, TAG_LENGTH);
+	}
+
+	static void write(OutputStream out, ByteBuffer frame) throws IOException {
+		out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		out.flush();
+	}
+
+	/**
+	 * Reads the next frame.
+	 *
+	 * @return the frame without its length, or {@code null} if the stream
+	 *         ended before it
+	 * @throws IOException
+	 *             if the frame is malformed or the stream ended within it
+	 */
+	static ByteBuffer read(DataInputStream in) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (length < BODY + 2 || length > MAX_LENGTH)
+			throw new IOException("Invalid frame length " + length);
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		if (buffer.getShort(BODY) < 0 || BODY + 2 + buffer.getShort(BODY) > length)
+			throw new IOException("Invalid sender length " + buffer.getShort(BODY));
+		return buffer;
+	}
+
+	static byte type(ByteBuffer frame) {
+		return frame.get(TYPE);
+	}
+
+	/**
+	 * @return the tag of a frame returned by {@link #read(DataInputStream)}
+	 */
+	static ByteBuffer tag(ByteBuffer frame) {
+		return slice(frame, TAG, TAG_LENGTH);
+	}
+
+	/**
+	 * Checks the tag of a message frame returned by
+	 * {@link #read(DataInputStream)}.
+	 */
+	static boolean verify(HmacService hmacs, ByteBuffer frame) {
+		return hmacs.verify(tag(frame), slice(frame, TYPE, 1), slice(frame, BODY, frame.limit() - BODY));
+	}
+
+	/**
+	 * Checks that a reply frame returned by {@link #read(DataInputStream)}
+	 * answers the message with the tag {@code inReplyTo}.
+	 */
+	static boolean verifyReply(HmacService hmacs, ByteBuffer frame, ByteBuffer inReplyTo) {
+		return hmacs.verify(tag(frame), slice(frame, TYPE, 1), slice(frame, BODY, frame.limit() - BODY),
+				inReplyTo.duplicate());
+	}
+
+	static ByteBuffer sender(ByteBuffer frame) {
+		return slice(frame, BODY + 2, frame.getShort(BODY));
+	}
+
+	static ByteBuffer payload(ByteBuffer frame) {
+		int start = BODY + 2 + frame.getShort(BODY);
+		return slice(frame, start, frame.limit() - start);
+	}
+
+	private static ByteBuffer slice(ByteBuffer frame, int offset, int length) {
+		ByteBuffer slice = frame.duplicate();
+		slice.limit(offset + length).position(offset);
+		return slice;
+	}
+
+	/**
+	 * @param tag
+	 *            the Base64 tag of the text message that offers frames
+	 * @return the segment to append to it
+	 */
+	static String offer(HmacService hmacs, String tag) {
+		byte[] signature = hmacs.sign((OFFER + " " + tag).getBytes(StandardCharsets.UTF_8));
+		return OFFER + " " + new String(Base64.encode(signature), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Splits a line of the text format.
+	 *
+	 * @return the tag, {@code <sender> :<message>} and the offer of frames or
+	 *         {@code null} if there is none; {@code null} if the line is
+	 *         malformed
+	 */
+	static String[] splitLine(String line) {
+		int first = line.indexOf(';');
+		if (first < 0)
+			return null;
+		int last = line.lastIndexOf(';');
+		String offer = null;
+		if (last > first && line.startsWith(OFFER + " ", last + 1)) {
+			offer = line.substring(last + 1);
+		} else {
+			last = line.length();
+		}
+		return new String[] { line.substring(0, first), line.substring(first + 1, last), offer };
+	}
+
+	/**
+	 * @return whether {@code offer} was appended by a client with the same
+	 *         key to the text message with the given tag
+	 */
+	static boolean isOffer(HmacService hmacs, String offer, String tag) {
+		if (offer == null || !offer.startsWith(OFFER + " "))
+			return false;
+		byte[] mac;
+		try {
+			mac = Base64.decode(offer.substring(OFFER.length() + 1));
+		} catch (RuntimeException e) {
+			return false;
+		}
+		return hmacs.verify(mac, (OFFER + " " + tag).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads a line of the text format byte by byte, so that nothing after it
+	 * is consumed in case the connection switches to frames.
+	 *
+	 * @return the line without its terminator, or {@code null} at the end of
+	 *         the stream
+	 */
+	static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				if (line.size() == 0)
+					return null;
+				break;
+			}
+			if (line.size() >= MAX_LENGTH)
+				throw new IOException("Line too long");
+			line.write(b);
+		}
+		byte[] bytes = line.toByteArray();
+		int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	static void writeLine(OutputStream out, String line) throws IOException {
+		out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+}
@@ -0,0 +1,106 @@
+package nameserver;
+
+/**
+ * Parses fully qualified names such as {@code alice.vienna.at} and domains
+ * such as {@code vienna.at}. A domain consists of labels of ASCII letters
+ * separated by single dots. The first label of a username may contain any
+ * character but a dot.
+ * <p/>
+ * Validation and splitting happen in one pass over the characters, without
+ * regular expressions or intermediate arrays.
+ */
+public final class DomainNames {
+
+	/**
+	 * Returned by {@link #split(String)} for a name that has no zone.
+	 */
+	public static final int NO_ZONE = -1;
+
+	/**
+	 * Returned by {@link #split(String)} for a name whose zone is not a valid
+	 * domain.
+	 */
+	public static final int INVALID = -2;
+
+	private DomainNames() {
+	}
+
+	/**
+	 * @return the index of the dot after the first label, {@link #NO_ZONE} or
+	 *         {@link #INVALID}
+	 */
+	public static int split(String name) {
+		int dot = name.indexOf('.');
+		if (dot < 0)
+			return NO_ZONE;
+		return isValid(name, dot + 1) ? dot : INVALID;
+	}
+
+	/**
+	 * @return whether the whole string is a valid domain
+	 */
+	public static boolean isValid(String domain) {
+		return isValid(domain, 0);
+	}
+
+	private static boolean isValid(String domain, int start) {
+		int length = domain.length();
+		if (start >= length)
+			return false;
+		boolean labelStart = true;
+		for (int i = start; i < length; i++) {
+			char c = domain.charAt(i);
+			if (c == '.') {
+				if (labelStart)
+					return false;
+				labelStart = true;
+			} else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+				labelStart = false;
+			} else {
+				return false;
+			}
+		}
+		return !labelStart;
+	}
+
+	/**
+	 * @param dot
+	 *            the result of {@link #split(String)}
+	 * @return the first label of the name, or the whole name if it has no zone
+	 */
+	public static String label(String name, int dot) {
+		return dot < 0 ? name : name.substring(0, dot);
+	}
+
+	/**
+	 * @param dot
+	 *            the result of {@link #split(String)}
+	 * @return the zone of the name in lower case, or the empty string if it
+	 *         has none
+	 */
+	public static String zone(String name, int dot) {
+		return dot < 0 ? "" : toLowerCase(name, dot + 1);
+	}
+
+	/**
+	 * @return the part of the domain after the start index in lower case;
+	 *         only allocates if anything is left over or upper case
+	 */
+	private static String toLowerCase(String domain, int start) {
+		int length = domain.length();
+		for (int i = start; i < length; i++) {
+			char c = domain.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				char[] lower = new char[length - start];
+				domain.getChars(start, length, lower, 0);
+				for (int j = i - start; j < lower.length; j++) {
+					char l = lower[j];
+					if (l >= 'A' && l <= 'Z')
+						lower[j] = (char) (l + ('a' - 'A'));
+				}
+				return new String(lower);
+			}
+		}
+		return start == 0 ? domain : domain.substring(start);
+	}
+}
@@ -2,6 +2,8 @@ package nameserver;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
 
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
@@ -18,4 +20,40 @@ public interface INameserver extends INameserverForChatserver, Remote {
 			throws RemoteException, AlreadyRegisteredException,
 			InvalidDomainException;
 
+	/**
+	 * Does nothing; the parent zone calls it regularly to find out whether
+	 * this nameserver is still there.
+	 */
+	public void ping() throws RemoteException;
+
+	/**
+	 * @return all nameservers of the subzone, or an empty list if there is
+	 *         no such subzone
+	 */
+	public List<INameserver> getReplicas(String zone) throws RemoteException;
+
+	/**
+	 * Called by the parent zone on every replica of this zone whenever a
+	 * nameserver joined or left the zone.
+	 * 
+	 * @param replicas
+	 *            all nameservers of the zone, including the called one
+	 */
+	public void replicaSetChanged(List<INameserver> replicas)
+			throws RemoteException;
+
+	/**
+	 * Applies addresses that were registered at another replica of this
+	 * zone, without passing them on.
+	 */
+	public void replicateAddresses(Map<String, String> addresses)
+			throws RemoteException;
+
+	/**
+	 * Applies the nameservers of a subzone as they are known to another
+	 * replica of this zone, without passing them on.
+	 */
+	public void replicateZone(String zone, List<INameserver> replicas)
+			throws RemoteException;
+
 }
@@ -2,6 +2,9 @@ package nameserver;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
@@ -20,6 +23,39 @@ public interface INameserverForChatserver extends Remote {
 	public INameserverForChatserver getNameserver(String zone)
 			throws RemoteException;
 
+	/**
+	 * @return all nameservers of the subzone, or an empty list if there is
+	 *         no such subzone
+	 */
+	public List<? extends INameserverForChatserver> getReplicas(String zone)
+			throws RemoteException;
+
 	public String lookup(String username) throws RemoteException;
 
+	/**
+	 * Resolves a username relative to this nameserver, e.g.
+	 * {@code alice.vienna.at} at the root. Instead of handing out the stub of
+	 * the next zone, the nameserver forwards the rest of the name to it, so
+	 * the caller needs a single remote call no matter how deep the zone is.
+	 * 
+	 * @return the address of the user, {@code null} or empty if the user has
+	 *         none
+	 * @throws InvalidDomainException
+	 *             if a zone on the way does not exist
+	 */
+	public String resolve(String username) throws RemoteException,
+			InvalidDomainException;
+
+	/**
+	 * Registers many addresses with one call, forwarding the users of each
+	 * subzone with a single call per subzone.
+	 * 
+	 * @param addresses
+	 *            the address to register for each username
+	 * @return the usernames that could not be registered because their
+	 *         domain is invalid or does not exist
+	 */
+	public Set<String> registerUsers(Map<String, String> addresses)
+			throws RemoteException;
+
 }
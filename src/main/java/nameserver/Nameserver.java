@@ -1,12 +1,14 @@
 package nameserver;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.rmi.AlreadyBoundException;
+import java.rmi.ConnectException;
 import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
@@ -16,13 +18,32 @@ import java.rmi.server.UnicastRemoteObject;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.MissingResourceException;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 import nameserver.exceptions.AlreadyRegisteredException;
 import nameserver.exceptions.InvalidDomainException;
+import nameserver.store.AddressTable;
+import nameserver.store.MapAddressTable;
+import nameserver.store.OffHeapAddressTable;
+import nameserver.store.PersistentAddressTable;
 import util.Config;
 
 /**
@@ -31,6 +52,9 @@ import util.Config;
  */
 public class Nameserver implements INameserverCli, Runnable, INameserver{
 
+	/** how many addresses a replica that just joined gets per call */
+	private static final int REPLICATION_BATCH = 10000;
+
 	private String componentName;
 	private Config config;
 	private InputStream userRequestStream;
@@ -41,8 +65,25 @@ public class Nameserver implements INameserverCli, Runnable, INameserver{
 	private String domain;
 	private Registry registry;
 	private INameserver remote;
-	private ConcurrentHashMap<String, String> addresses = new ConcurrentHashMap<>();
-	private ConcurrentHashMap<String, INameserver> zones = new ConcurrentHashMap<>();
+	private AddressTable addresses = new MapAddressTable();
+	private ConcurrentSkipListMap<String, ReplicaSet> zones = new ConcurrentSkipListMap<>();
+	private volatile List<INameserver> peers = Collections.emptyList();
+	private volatile boolean joined;
+	private int maxReplicas;
+	private int connectTimeout;
+	private int readTimeout;
+	private long heartbeatInterval;
+	private long heartbeatTimeout;
+	private int heartbeatMisses;
+	private ScheduledExecutorService heartbeat;
+	private ExecutorService pings;
+	private ExecutorService replication;
+	private int pageSize;
+	// the usernames of the table in sorted order, for listing by prefix
+	private ConcurrentSkipListSet<String> sortedUsernames = new ConcurrentSkipListSet<>();
+	private ConcurrentHashMap<String, Referral> referrals = new ConcurrentHashMap<>();
+	private long referralTtl;
+	private RequestLog requestLog;
 
 	/**
 	 * @param componentName
@@ -63,6 +104,16 @@ public class Nameserver implements INameserverCli, Runnable, INameserver{
 		this.rootID = config.getString("root_id");
 		this.registryHost = config.getString("registry.host");
 		this.registryPort = config.getInt("registry.port");
+		this.referralTtl = config.getInt("referral.ttl");
+		this.maxReplicas = config.getInt("zone.replicas");
+		this.connectTimeout = config.getInt("rmi.connect.timeout");
+		this.readTimeout = config.getInt("rmi.read.timeout");
+		this.heartbeatInterval = config.getInt("heartbeat.interval");
+		this.heartbeatTimeout = config.getInt("heartbeat.timeout");
+		this.pings = Executors.newCachedThreadPool(daemonThreads("ping"));
+		this.replication = Executors.newSingleThreadExecutor(daemonThreads("replication"));
+		this.heartbeatMisses = config.getInt("heartbeat.misses");
+		this.pageSize = config.getInt("console.page.size");
 		
 		try{
 			this.domain = config.getString("domain");
@@ -70,6 +121,31 @@ public class Nameserver implements INameserverCli, Runnable, INameserver{
 		catch(MissingResourceException e){
 			domain = null;
 		}
+		
+		this.requestLog = new RequestLog(userResponseStream, domain, RequestLog.Mode.parse(config
+				.getString("request.log")), config.getInt("request.log.sample"), config.getInt("request.log.buffer"));
+		
+		try{
+			if(config.getString("addresses.table").equals("offheap")){
+				addresses = new OffHeapAddressTable();
+			}
+		}
+		catch(MissingResourceException e){
+			//keep the map
+		}
+		
+		try{
+			String store = config.getString("addresses.store");
+			addresses = new PersistentAddressTable(addresses, new File(store),
+					config.getInt("addresses.store.fsync"), config.getInt("addresses.store.compact"));
+		}
+		catch(MissingResourceException e){
+			//addresses are only kept in memory
+		}
+		catch(IOException e){
+			throw new RuntimeException("Cannot open the address store", e);
+		}
+		sortedUsernames.addAll(addresses.usernames());
 	}
 
 	@Override
@@ -87,7 +163,8 @@ public class Nameserver implements INameserverCli, Runnable, INameserver{
 				registry = LocateRegistry.createRegistry(registryPort);
 				
 				//reate a remote object of this nameserver object
-				 remote = (INameserver) UnicastRemoteObject.exportObject(this, 0);
+				 remote = (INameserver) UnicastRemoteObject.exportObject(this, 0,
+						new TimeoutSocketFactory(connectTimeout, readTimeout), null);
 				
 				// bind the obtained remote object on specified binding name in the
 				// registry
@@ -99,6 +176,7 @@ public class Nameserver implements INameserverCli, Runnable, INameserver{
 				throw new RuntimeException("Error while binding remote object to registry.", e);
 			}
 			userResponseWriter.println(new Timestamp(System.currentTimeMillis()) + " : " + this.componentName + " is up!");
+			startHeartbeat();
 			
 		}else{
 			INameserver rootServer;
@@ -117,10 +195,12 @@ public class Nameserver implements INameserverCli, Runnable, INameserver{
 			try{
 				try {
 					//SETUP A CALLBACK OBJECT
-					remote = (INameserver) UnicastRemoteObject.exportObject(this, 0);
+					remote = (INameserver) UnicastRemoteObject.exportObject(this, 0,
+						new TimeoutSocketFactory(connectTimeout, readTimeout), null);
 					userResponseWriter.println(new Timestamp(System.currentTimeMillis()) + " : " + "Registering nameserver for zone " + domain + "..." );
 					rootServer.registerNameserver(domain, remote, remote);
 					userResponseWriter.println(new Timestamp(System.currentTimeMillis()) + " : " + this.componentName + " is up!");
+					startHeartbeat();
 					
 				}catch (AlreadyRegisteredException e) {
 					userResponseWriter.println("This domain is already registered.");
@@ -145,15 +225,17 @@ public class Nameserver implements INameserverCli, Runnable, INameserver{
 		while(true){
 			try{
 				String input = userRequestReader.readLine();
-				switch(input){
+				//optional arguments: page number and prefix, e.g. "!addresses 2 al"
+				String[] parts = input.trim().split("\\s+");
+				switch(parts[0]){
 					case "!exit":
 							userResponseWriter.println(this.exit());
 							return;
 					case "!addresses":
-							userResponseWriter.println(this.addresses());
+							userResponseWriter.println(this.addresses(pageOf(parts), prefixOf(parts)));
 						break;
 					case "!nameservers":
-						userResponseWriter.println(this.nameservers());
+						userResponseWriter.println(this.nameservers(pageOf(parts), prefixOf(parts)));
 						break;
 					default: userResponseWriter.println("Unknown command.");
 				}
@@ -167,42 +249,110 @@ public class Nameserver implements INameserverCli, Runnable, INameserver{
 	
 
 	@Override
-	public String nameservers() throws IOException {		
-		List<String> serverList = new ArrayList<>();
-		serverList.addAll(zones.keySet());
-		
-		Collections.sort(serverList);
-		
-		String result = "";
-		int i = 1;
-		for(String s: serverList){
-			result += i + ". " + s + "\n";
-			i++;
+	public String nameservers() throws IOException {
+		return nameservers(0, "");
+	}
+
+	/**
+	 * @param page
+	 *            the page of {@code console.page.size} zones to list, starting
+	 *            at 1; 0 lists all
+	 * @param prefix
+	 *            only zones starting with it are listed
+	 */
+	public String nameservers(int page, String prefix) {
+		StringBuilder result = new StringBuilder();
+		int first = page == 0 ? 0 : (page - 1) * pageSize;
+		int last = page == 0 ? Integer.MAX_VALUE : page * pageSize;
+		int n = 0;
+		for(Map.Entry<String, ReplicaSet> zone : zones.tailMap(prefix).entrySet()){
+			if(!zone.getKey().startsWith(prefix))
+				break;
+			if(n == last){
+				appendNextPage(result, "!nameservers", page, prefix);
+				break;
+			}
+			if(++n <= first)
+				continue;
+			result.append(n).append(". ").append(zone.getKey());
+			int replicas = zone.getValue().size();
+			if(replicas > 1)
+				result.append(" (").append(replicas).append(" replicas)");
+			result.append('\n');
 		}
-		return result;
+		return result.toString();
 	}
 
 	@Override
 	public String addresses() throws IOException {
-		
-		List<String> userList = new ArrayList<>();
-		userList.addAll(addresses.keySet());
-		
-		Collections.sort(userList);
-		
-		String result = "";
-		int i = 1;
-		for(String s: userList){
-			if(!addresses.get(s).equals(""))
-			result += i + ". " + s + " " + addresses.get(s) + "\n";
-			i++;
+		return addresses(0, "");
+	}
+
+	/**
+	 * @param page
+	 *            the page of {@code console.page.size} users to list, starting
+	 *            at 1; 0 lists all
+	 * @param prefix
+	 *            only users whose name starts with it are listed
+	 */
+	public String addresses(int page, String prefix) {
+		StringBuilder result = new StringBuilder();
+		int first = page == 0 ? 0 : (page - 1) * pageSize;
+		int last = page == 0 ? Integer.MAX_VALUE : page * pageSize;
+		int n = 0;
+		for(String username : sortedUsernames.tailSet(prefix)){
+			if(!username.startsWith(prefix))
+				break;
+			String address = addresses.get(username);
+			if(address == null || address.isEmpty())
+				continue;
+			if(n == last){
+				appendNextPage(result, "!addresses", page, prefix);
+				break;
+			}
+			if(++n <= first)
+				continue;
+			result.append(n).append(". ").append(username).append(' ').append(address).append('\n');
 		}
-		return result;
+		return result.toString();
+	}
+
+	/**
+	 * Stores an address of this zone. Usernames are never removed, a removed
+	 * user keeps an empty address.
+	 */
+	private void putAddress(String username, String address){
+		addresses.put(username, address);
+		sortedUsernames.add(username);
+	}
+
+	private static int pageOf(String[] parts){
+		try{
+			return parts.length > 1 ? Math.max(0, Integer.parseInt(parts[1])) : 0;
+		}catch(NumberFormatException e){
+			return 0;
+		}
+	}
+
+	private static String prefixOf(String[] parts){
+		return parts.length > 2 ? parts[2] : "";
+	}
+
+	private static void appendNextPage(StringBuilder result, String command, int page, String prefix){
+		result.append("More on the next page: ").append(command).append(' ').append(page + 1);
+		if(!prefix.isEmpty())
+			result.append(' ').append(prefix);
+		result.append('\n');
 	}
 
 	@Override
 	public String exit() throws IOException {
 		
+		if(heartbeat != null)
+			heartbeat.shutdownNow();
+		pings.shutdownNow();
+		replication.shutdownNow();
+		
 		try {
 			// unexport the previously exported remote object
 			UnicastRemoteObject.unexportObject(this, true);
@@ -222,6 +372,15 @@ public class Nameserver implements INameserverCli, Runnable, INameserver{
 			UnicastRemoteObject.unexportObject(registry, true);
 		}
 		
+        requestLog.close();
+		
+        try{
+        	addresses.close();
+        }catch(IOException e){
+        	System.err.println("Error while closing the address store: "
+        			+ e.getMessage());
+        }
+		
         try{
         	userRequestStream.close();
         }catch(IOException e){
@@ -248,84 +407,406 @@ public class Nameserver implements INameserverCli, Runnable, INameserver{
 	public void registerUser(String username, String address)
 			throws RemoteException, AlreadyRegisteredException, InvalidDomainException {
 		
-		loggingForChatserver();
+		requestLog.request();
 		
-		String[] parts = username.split("\\.");
+		int dot = DomainNames.split(username);
 
-		if(parts.length == 1){
-			this.addresses.put(parts[0], address);
+		if(dot == DomainNames.NO_ZONE){
+			putAddress(username, address);
+			replicate(Collections.singletonMap(username, address));
 		}
 		
 		else{
-			String parentDomain = parts[parts.length-1];
-			if(!isDomainValid(parentDomain)){
+			if(dot == DomainNames.INVALID){
 				throw new InvalidDomainException("The domain may contain only alphabetic characters");
 			}
-			if(!zones.containsKey(parentDomain.toLowerCase()))
-				throw new InvalidDomainException("The domain does not exist");
-			else{
-				String username1 = username.substring(0,username.lastIndexOf("."));
-				zones.get(parentDomain.toLowerCase()).registerUser(username1, address);			
-				}
-			}	
+			String zone = DomainNames.zone(username, dot);
+			String label = DomainNames.label(username, dot);
+			try {
+				findExistingZone(zone).registerUser(label, address);
+			} catch (NoSuchObjectException | ConnectException e) {
+				dropReferrals();
+				findExistingZone(zone).registerUser(label, address);
+			}
+		}	
 	}
 	
-	public ConcurrentHashMap<String, String> getAddresses(){
+	public AddressTable getAddresses(){
 		return this.addresses;
 	}
 
 	@Override
 	public INameserverForChatserver getNameserver(String zone) throws RemoteException {
-		loggingForChatserver();
-		return zones.get(zone.toLowerCase());
+		requestLog.request();
+		ReplicaSet replicas = zones.get(zone.toLowerCase());
+		return replicas == null ? null : replicas.next();
+	}
+
+	@Override
+	public List<INameserver> getReplicas(String zone) throws RemoteException {
+		requestLog.request();
+		ReplicaSet replicas = zones.get(zone.toLowerCase());
+		return replicas == null ? Collections.<INameserver> emptyList() : replicas.list();
 	}
 
 	@Override
 	public String lookup(String username) throws RemoteException {
-		loggingForChatserver();
+		requestLog.request();
 		return addresses.get(username);
 	}
 
+	@Override
+	public String resolve(String username) throws RemoteException, InvalidDomainException {
+		requestLog.request();
+		int dot = DomainNames.split(username);
+		if (dot == DomainNames.NO_ZONE)
+			return addresses.get(username);
+		if (dot == DomainNames.INVALID)
+			throw new InvalidDomainException("The domain does not exist");
+
+		String zone = DomainNames.zone(username, dot);
+		String label = DomainNames.label(username, dot);
+		try {
+			return findExistingZone(zone).resolve(label);
+		} catch (NoSuchObjectException | ConnectException e) {
+			dropReferrals();
+			return findExistingZone(zone).resolve(label);
+		}
+	}
+
+	@Override
+	public Set<String> registerUsers(Map<String, String> userAddresses) throws RemoteException {
+		requestLog.request();
+
+		Set<String> failed = new HashSet<>();
+		Map<String, String> local = new HashMap<>();
+		// subzone -> (username relative to the subzone -> username as requested)
+		Map<String, Map<String, String>> names = new HashMap<>();
+		Map<String, Map<String, String>> forward = new HashMap<>();
+		for (Map.Entry<String, String> entry : userAddresses.entrySet()) {
+			String username = entry.getKey();
+			int dot = DomainNames.split(username);
+			if (dot == DomainNames.NO_ZONE) {
+				putAddress(username, entry.getValue());
+				local.put(username, entry.getValue());
+				continue;
+			}
+			if (dot == DomainNames.INVALID) {
+				failed.add(username);
+				continue;
+			}
+			String zone = DomainNames.zone(username, dot);
+			String label = DomainNames.label(username, dot);
+			if (!forward.containsKey(zone)) {
+				forward.put(zone, new HashMap<String, String>());
+				names.put(zone, new HashMap<String, String>());
+			}
+			forward.get(zone).put(label, entry.getValue());
+			names.get(zone).put(label, username);
+		}
+		if (!local.isEmpty())
+			replicate(local);
+
+		for (Map.Entry<String, Map<String, String>> entry : forward.entrySet()) {
+			Set<String> failedInZone;
+			try {
+				INameserver nameserver = findZone(entry.getKey());
+				failedInZone = nameserver == null ? entry.getValue().keySet() : nameserver.registerUsers(entry
+						.getValue());
+			} catch (NoSuchObjectException | ConnectException e) {
+				dropReferrals();
+				throw e;
+			}
+			for (String child : failedInZone) {
+				failed.add(names.get(entry.getKey()).get(child));
+			}
+		}
+		return failed;
+	}
+
 	@Override
 	public void registerNameserver(String domain, INameserver nameserver,
 			INameserverForChatserver nameserverForChatserver)
 					throws RemoteException, AlreadyRegisteredException, InvalidDomainException {
 		
 		
-		if(!isDomainValid(domain))
+		if(!DomainNames.isValid(domain))
 			throw new InvalidDomainException("Domain may contain only alphabetic characters");
 		
-		if(!domain.contains(".")){
-			if(!zones.containsKey(domain.toLowerCase()))
-				zones.put(domain.toLowerCase(), nameserver);
-			else
-				throw new AlreadyRegisteredException("The domain already exists.");
+		int dot = DomainNames.split(domain);
+		if(dot == DomainNames.NO_ZONE){
+			String zone = domain.toLowerCase();
+			ReplicaSet replicas;
+			do{
+				replicas = new ReplicaSet();
+				ReplicaSet existing = zones.putIfAbsent(zone, replicas);
+				if(existing != null)
+					replicas = existing;
+				if(!replicas.add(nameserver, maxReplicas))
+					throw new AlreadyRegisteredException("The domain already exists.");
+				//the heartbeat may have dropped the set while it was empty
+			}while(zones.get(zone) != replicas);
+			replicaSetChanged(zone, replicas.list());
 		}
 		
 		else{
-			String[] parts = domain.split("\\.");
-			String parentDomain = parts[parts.length-1];
-			if(zones.containsKey(parentDomain.toLowerCase())){
-				String subdomain = domain.substring(0,domain.lastIndexOf("."));
-				zones.get(parentDomain.toLowerCase()).registerNameserver(subdomain, nameserver, nameserverForChatserver);			
+			String parentDomain = DomainNames.zone(domain, dot);
+			String subdomain = DomainNames.label(domain, dot);
+			try {
+				INameserver parent = findZone(parentDomain);
+				if(parent == null)
+					throw new InvalidDomainException("The parent domain does not exist");
+				parent.registerNameserver(subdomain, nameserver, nameserverForChatserver);
+			} catch (NoSuchObjectException | ConnectException e) {
+				dropReferrals();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Finds the nameserver of a zone below this one, e.g. {@code vienna.at}
+	 * at the root. Direct subzones are known from {@link #zones}; deeper ones
+	 * are asked for once and then kept as referrals until their TTL expires,
+	 * so later requests skip the intermediate nameservers. A referral holds
+	 * all replicas of the zone, and requests are spread over them in turn.
+	 *
+	 * @return the nameserver, or {@code null} if there is no such zone
+	 */
+	private INameserver findZone(String zone) throws RemoteException {
+		zone = zone.toLowerCase();
+		int dot = zone.indexOf('.');
+		if (dot < 0) {
+			ReplicaSet replicas = zones.get(zone);
+			return replicas == null ? null : replicas.next();
+		}
+
+		Referral referral = referrals.get(zone);
+		if (referral != null && referral.expires > System.currentTimeMillis())
+			return referral.replicas.next();
+
+		INameserver parent = findZone(zone.substring(dot + 1));
+		if (parent == null)
+			return null;
+		List<INameserver> children = parent.getReplicas(zone.substring(0, dot));
+		if (children.isEmpty())
+			return null;
+		ReplicaSet replicas = new ReplicaSet();
+		replicas.set(children);
+		referrals.put(zone, new Referral(replicas, System.currentTimeMillis() + referralTtl));
+		return replicas.next();
+	}
+
+	private INameserver findExistingZone(String zone) throws RemoteException, InvalidDomainException {
+		INameserver nameserver = findZone(zone);
+		if (nameserver == null)
+			throw new InvalidDomainException("The domain does not exist");
+		return nameserver;
+	}
+
+	@Override
+	public void ping() throws RemoteException {
+		// answering is all it takes
+	}
+
+	@Override
+	public synchronized void replicaSetChanged(List<INameserver> replicas) throws RemoteException {
+		List<INameserver> old = peers;
+		List<INameserver> current = new ArrayList<>(replicas);
+		current.remove(remote);
+		peers = Collections.unmodifiableList(current);
+		if (!joined) {
+			// the first call is about joining; whatever this nameserver has
+			// may be older than what the zone already knows
+			joined = true;
+			return;
+		}
+
+		// bring replicas that just joined up to date, without keeping the
+		// parent's registration call waiting for the whole table
+		for (final INameserver peer : current) {
+			if (old.contains(peer))
+				continue;
+			replication.execute(new Runnable() {
+				@Override
+				public void run() {
+					bringUpToDate(peer);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Pushes all addresses and subzones to a replica that just joined. The
+	 * addresses are sent in batches, so that no single call has to carry
+	 * the whole table of a large zone.
+	 */
+	private void bringUpToDate(INameserver peer) {
+		try {
+			Map<String, String> batch = new HashMap<>();
+			for (String username : addresses.usernames()) {
+				batch.put(username, addresses.get(username));
+				if (batch.size() == REPLICATION_BATCH) {
+					peer.replicateAddresses(batch);
+					batch = new HashMap<>();
+				}
 			}
-			else{
-				throw new InvalidDomainException("The parent domain does not exist");
+			if (!batch.isEmpty())
+				peer.replicateAddresses(batch);
+			for (Map.Entry<String, ReplicaSet> zone : zones.entrySet()) {
+				peer.replicateZone(zone.getKey(), zone.getValue().list());
+			}
+		} catch (RemoteException e) {
+			System.err.println("Error while updating a replica: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void replicateAddresses(Map<String, String> addresses) throws RemoteException {
+		for (Map.Entry<String, String> entry : addresses.entrySet()) {
+			putAddress(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public void replicateZone(String zone, List<INameserver> replicas) throws RemoteException {
+		if (replicas.isEmpty()) {
+			zones.remove(zone);
+			dropReferrals();
+			return;
+		}
+		ReplicaSet set = new ReplicaSet();
+		ReplicaSet existing = zones.putIfAbsent(zone, set);
+		(existing != null ? existing : set).set(replicas);
+	}
+
+	/**
+	 * Passes addresses registered here on to the other replicas of this zone.
+	 * A replica that does not answer misses them; it is expected to leave the
+	 * zone.
+	 */
+	private void replicate(Map<String, String> changed) {
+		for (INameserver peer : peers) {
+			try {
+				peer.replicateAddresses(changed);
+			} catch (RemoteException e) {
+				System.err.println("Error while updating a replica: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Tells the nameservers of a subzone and the other replicas of this zone
+	 * about the current nameservers of the subzone.
+	 */
+	private void replicaSetChanged(String zone, List<INameserver> replicas) {
+		for (INameserver replica : replicas) {
+			try {
+				replica.replicaSetChanged(replicas);
+			} catch (RemoteException e) {
+				System.err.println("Error while updating a replica: " + e.getMessage());
+			}
+		}
+		for (INameserver peer : peers) {
+			try {
+				peer.replicateZone(zone, replicas);
+			} catch (RemoteException e) {
+				System.err.println("Error while updating a replica: " + e.getMessage());
+			}
+		}
+	}
+
+	private void startHeartbeat() {
+		heartbeat = Executors.newSingleThreadScheduledExecutor(daemonThreads("heartbeat"));
+		heartbeat.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkZones();
+			}
+		}, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + componentName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Pings the nameservers of all subzones and evicts those that missed
+	 * {@code heartbeat.misses} heartbeats in a row. A ping is missed if it
+	 * is not answered within {@code heartbeat.timeout}, which is much shorter
+	 * than the read timeout of other calls. A subzone whose last nameserver
+	 * was evicted no longer exists.
+	 */
+	void checkZones() {
+		for (Map.Entry<String, ReplicaSet> entry : zones.entrySet()) {
+			String zone = entry.getKey();
+			ReplicaSet replicas = entry.getValue();
+			List<INameserver> members = replicas.list();
+			List<Future<?>> answers = new ArrayList<>();
+			for (final INameserver replica : members) {
+				answers.add(pings.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws RemoteException {
+						replica.ping();
+						return null;
+					}
+				}));
+			}
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(heartbeatTimeout);
+			boolean changed = false;
+			for (int i = 0; i < members.size(); i++) {
+				INameserver replica = members.get(i);
+				try {
+					answers.get(i).get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					replicas.answered(replica);
+				} catch (ExecutionException | TimeoutException e) {
+					// a ping that hangs keeps its thread until the read timeout
+					answers.get(i).cancel(true);
+					if (replicas.missed(replica) >= heartbeatMisses) {
+						replicas.remove(replica);
+						changed = true;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
 				}
 			}
+			if (!changed)
+				continue;
+			synchronized (replicas) {
+				if (replicas.size() == 0)
+					zones.remove(zone, replicas);
+			}
+			dropReferrals();
+			userResponseStream.println(new Timestamp(System.currentTimeMillis()) + " : Removed a nameserver of zone '"
+					+ zone + "' that stopped answering");
+			replicaSetChanged(zone, replicas.list());
+		}
 	}
-	
-	private boolean isDomainValid(String domain){
-		    return domain.matches("[a-zA-Z]+(.[a-zA-Z]+)*");
+
+	/**
+	 * Called when a nameserver did not answer; the referrals may point to it
+	 * or to a zone that was registered anew in the meantime.
+	 */
+	private void dropReferrals() {
+		referrals.clear();
 	}
 	
-	private void loggingForChatserver(){
-		
-		PrintWriter userResponseWriter = new PrintWriter(userResponseStream, true);
-		String dom = domain == null ? "root":domain;
-		userResponseWriter.println(new Timestamp(System.currentTimeMillis()) + " : Nameserver for '" + dom + "' requested by chatserver");
-		
+	private static class Referral {
+		private final ReplicaSet replicas;
+		private final long expires;
+
+		Referral(ReplicaSet replicas, long expires) {
+			this.replicas = replicas;
+			this.expires = expires;
+		}
 	}
-	
 
 }
@@ -0,0 +1,81 @@
+package nameserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The nameservers that registered for the same subzone. Requests for the
+ * subzone are spread over them in turn.
+ */
+class ReplicaSet {
+
+	private CopyOnWriteArrayList<INameserver> members = new CopyOnWriteArrayList<>();
+	private AtomicInteger next = new AtomicInteger();
+	private ConcurrentHashMap<INameserver, Integer> missed = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the member whose turn it is, or {@code null} if there is none
+	 */
+	INameserver next() {
+		Object[] current = members.toArray();
+		if (current.length == 0)
+			return null;
+		return (INameserver) current[(next.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+	}
+
+	/**
+	 * @return {@code false} if the set already has {@code limit} members
+	 */
+	synchronized boolean add(INameserver nameserver, int limit) {
+		if (members.contains(nameserver))
+			return true;
+		if (members.size() >= limit)
+			return false;
+		members.add(nameserver);
+		return true;
+	}
+
+	/**
+	 * Replaces the members by the ones another replica of the parent zone
+	 * knows.
+	 */
+	synchronized void set(List<INameserver> replicas) {
+		members.retainAll(replicas);
+		members.addAllAbsent(replicas);
+	}
+
+	synchronized boolean remove(INameserver nameserver) {
+		missed.remove(nameserver);
+		return members.remove(nameserver);
+	}
+
+	/**
+	 * Records that the member answered a heartbeat.
+	 */
+	void answered(INameserver nameserver) {
+		missed.remove(nameserver);
+	}
+
+	/**
+	 * Records that the member did not answer a heartbeat.
+	 * 
+	 * @return how many heartbeats in a row it missed
+	 */
+	synchronized int missed(INameserver nameserver) {
+		Integer count = missed.get(nameserver);
+		count = count == null ? 1 : count + 1;
+		missed.put(nameserver, count);
+		return count;
+	}
+
+	List<INameserver> list() {
+		return new ArrayList<>(members);
+	}
+
+	int size() {
+		return members.size();
+	}
+}
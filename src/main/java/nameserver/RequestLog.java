@@ -0,0 +1,165 @@
+package nameserver;
+
+import java.io.PrintStream;
+import java.sql.Timestamp;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs the requests a nameserver receives from the chatserver without
+ * making the RMI threads wait for the console.
+ * <p/>
+ * {@link #request()} only puts the current time into a bounded ring buffer
+ * shared by all callers; one background thread takes the entries out and
+ * writes them. When the buffer is full the request is counted as dropped
+ * instead of blocking, and the number of dropped requests is reported with
+ * the next line.
+ * <p/>
+ * Depending on the {@link Mode}, the usual line is written for every
+ * request or only for every n-th, whose requests are the only ones that
+ * enter the buffer. In {@link Mode#AGGREGATE} requests are merely counted
+ * and the background thread writes the count once per second.
+ */
+public class RequestLog {
+
+	public enum Mode {
+		/** one line per request, as the scenario tests expect */
+		EACH,
+		/** one line for every n-th request */
+		SAMPLE,
+		/** one line per second with the number of requests */
+		AGGREGATE,
+		/** nothing at all */
+		OFF;
+
+		public static Mode parse(String value) {
+			return valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	private static final long IDLE_NANOS = 10000000;
+
+	private PrintStream out;
+	private String zone;
+	private Mode mode;
+	private int sampleRate;
+
+	private AtomicLongArray ring;
+	private int mask;
+	private AtomicLong head = new AtomicLong();
+	private AtomicLong tail = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicLong requests = new AtomicLong();
+
+	private Thread writer;
+	private volatile boolean closed;
+
+	/**
+	 * @param zone
+	 *            the zone of the nameserver, {@code null} for the root
+	 * @param sampleRate
+	 *            in {@link Mode#SAMPLE}, every how many requests a line is
+	 *            written
+	 * @param capacity
+	 *            how many requests may wait for the background thread,
+	 *            rounded up to a power of two
+	 */
+	public RequestLog(PrintStream out, String zone, Mode mode, int sampleRate, int capacity) {
+		this.out = out;
+		this.zone = zone == null ? "root" : zone;
+		this.mode = mode;
+		this.sampleRate = Math.max(1, sampleRate);
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.ring = new AtomicLongArray(size);
+		this.mask = size - 1;
+
+		if (mode != Mode.OFF) {
+			writer = new Thread("request-log-" + this.zone) {
+				@Override
+				public void run() {
+					drainLoop();
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	/**
+	 * Records a request from the chatserver. Never blocks.
+	 */
+	public void request() {
+		if (mode == Mode.OFF)
+			return;
+		if (mode == Mode.AGGREGATE) {
+			requests.incrementAndGet();
+			return;
+		}
+		if (mode == Mode.SAMPLE && requests.incrementAndGet() % sampleRate != 0)
+			return;
+		long now = System.currentTimeMillis();
+		long t;
+		do {
+			t = tail.get();
+			if (t - head.get() >= ring.length()) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!tail.compareAndSet(t, t + 1));
+		// a slot holding 0 has not been published yet
+		ring.lazySet((int) t & mask, now);
+	}
+
+	/**
+	 * Writes what is still buffered and stops the background thread.
+	 */
+	public void close() {
+		closed = true;
+		if (writer == null)
+			return;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drainLoop() {
+		long second = System.currentTimeMillis() / 1000;
+		while (true) {
+			boolean stopping = closed;
+			long h = head.get();
+			long time;
+			while (h < tail.get() && (time = ring.get((int) h & mask)) != 0) {
+				ring.lazySet((int) h & mask, 0);
+				head.lazySet(++h);
+				write(time, "Nameserver for '" + zone + "' requested by chatserver");
+			}
+			long now = System.currentTimeMillis();
+			if (mode == Mode.AGGREGATE && (stopping || now / 1000 != second)) {
+				long count = requests.getAndSet(0);
+				if (count > 0)
+					write(now, "Nameserver for '" + zone + "' requested " + count
+							+ " times by chatserver in the last second");
+				second = now / 1000;
+			}
+			if (stopping) {
+				long lost = dropped.getAndSet(0);
+				if (lost > 0)
+					out.println(new Timestamp(now) + " : " + lost + " requests by chatserver were not logged");
+				return;
+			}
+			LockSupport.parkNanos(this, IDLE_NANOS);
+		}
+	}
+
+	private void write(long time, String message) {
+		long lost = dropped.getAndSet(0);
+		if (lost > 0)
+			out.println(new Timestamp(System.currentTimeMillis()) + " : " + lost
+					+ " requests by chatserver were not logged");
+		out.println(new Timestamp(time) + " : " + message);
+	}
+}
@@ -0,0 +1,62 @@
+package nameserver;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+
+/**
+ * Creates the sockets over which callers reach a nameserver. The factory is
+ * part of the nameserver's stub, so the timeouts apply to everyone holding
+ * the stub: a call to a nameserver that went away fails after the connect
+ * timeout, and one that stopped answering after the read timeout, instead
+ * of blocking the caller for minutes.
+ */
+public class TimeoutSocketFactory implements RMIClientSocketFactory, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	/**
+	 * @param connectTimeout
+	 *            in milliseconds, 0 waits forever
+	 * @param readTimeout
+	 *            in milliseconds, 0 waits forever
+	 */
+	public TimeoutSocketFactory(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			socket.setSoTimeout(readTimeout);
+			socket.setTcpNoDelay(true);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	// RMI shares connections between stubs whose factories are equal
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof TimeoutSocketFactory))
+			return false;
+		TimeoutSocketFactory other = (TimeoutSocketFactory) o;
+		return connectTimeout == other.connectTimeout && readTimeout == other.readTimeout;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * connectTimeout + readTimeout;
+	}
+}
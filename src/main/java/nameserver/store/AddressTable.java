@@ -0,0 +1,37 @@
+package nameserver.store;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * The addresses a nameserver manages for the users of its own zone.
+ * Implementations must be safe for concurrent use by the RMI threads.
+ */
+public interface AddressTable {
+
+	/**
+	 * @return the address of the user, or {@code null} if none was ever
+	 *         registered
+	 */
+	public String get(String username);
+
+	/**
+	 * Registers or replaces the address of the user. An empty address means
+	 * that the user has none anymore.
+	 */
+	public void put(String username, String address);
+
+	/**
+	 * @return the names of all users an address was registered for; the
+	 *         collection may be iterated while addresses change
+	 */
+	public Collection<String> usernames();
+
+	public int size();
+
+	/**
+	 * Releases all resources. The table must not be used afterwards.
+	 */
+	public void close() throws IOException;
+
+}
@@ -0,0 +1,38 @@
+package nameserver.store;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps all addresses in a {@link ConcurrentHashMap}.
+ */
+public class MapAddressTable implements AddressTable {
+
+	private ConcurrentHashMap<String, String> addresses = new ConcurrentHashMap<>();
+
+	@Override
+	public String get(String username) {
+		return addresses.get(username);
+	}
+
+	@Override
+	public void put(String username, String address) {
+		addresses.put(username, address);
+	}
+
+	@Override
+	public Collection<String> usernames() {
+		return addresses.keySet();
+	}
+
+	@Override
+	public int size() {
+		return addresses.size();
+	}
+
+	@Override
+	public void close() {
+		// nothing to release
+	}
+
+}
@@ -0,0 +1,299 @@
+package nameserver.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the addresses of a large zone outside of the Java heap, so that
+ * neither the heap nor the garbage collector has to deal with millions of
+ * small strings.
+ * <p/>
+ * Usernames are appended as {@code [short length][UTF-8 bytes]} to direct
+ * buffers of {@value #SEGMENT_SIZE} bytes each and never removed; an
+ * address that is set to the empty string is remembered as such, just like
+ * in a map. An open-addressing table with linear probing, also in a direct
+ * buffer, holds one slot of {@code [int hash][int username][int ip][int port]}
+ * per user. Addresses of the form {@code a.b.c.d:port} are stored as two
+ * ints; anything else is kept in a small map on the heap.
+ */
+public class OffHeapAddressTable implements AddressTable {
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int SEGMENT_BITS = 24;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	private static final int SLOT_SIZE = 16;
+	private static final float LOAD_FACTOR = 0.7f;
+
+	// values of the port field that do not describe an IPv4 address
+	private static final int NO_ADDRESS = -1;
+	private static final int OTHER_ADDRESS = -2;
+	// result of parse() for other addresses; no IPv4 address has this port
+	private static final long NOT_IPV4 = -1;
+
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+	private List<ByteBuffer> segments = new ArrayList<>();
+	private int segmentPosition = SEGMENT_SIZE;
+	private ByteBuffer slots;
+	private int capacity;
+	private int size;
+	private ConcurrentHashMap<String, String> otherAddresses = new ConcurrentHashMap<>();
+
+	public OffHeapAddressTable() {
+		this(1024);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            the number of users the table should hold without growing
+	 */
+	public OffHeapAddressTable(int expectedSize) {
+		capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+	}
+
+	@Override
+	public String get(String username) {
+		byte[] key = username.getBytes(CHARSET);
+		int hash = hash(username);
+		lock.readLock().lock();
+		try {
+			int slot = find(key, hash);
+			if (slot < 0)
+				return null;
+			int port = slots.getInt(slot + 12);
+			if (port == NO_ADDRESS)
+				return "";
+			if (port == OTHER_ADDRESS)
+				return otherAddresses.get(username);
+			return format(slots.getInt(slot + 8), port);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void put(String username, String address) {
+		byte[] key = username.getBytes(CHARSET);
+		if (key.length > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Username too long");
+		int hash = hash(username);
+		long parsed = address.isEmpty() ? 0 : parse(address);
+		int ip = (int) (parsed >>> 32);
+		int port = address.isEmpty() ? NO_ADDRESS : parsed == NOT_IPV4 ? OTHER_ADDRESS : (int) parsed;
+
+		lock.writeLock().lock();
+		try {
+			int slot = find(key, hash);
+			if (slot < 0) {
+				if (size + 1 > capacity * LOAD_FACTOR)
+					grow();
+				slot = freeSlot(hash);
+				slots.putInt(slot, hash);
+				slots.putInt(slot + 4, append(key));
+				size++;
+			}
+			slots.putInt(slot + 8, ip);
+			slots.putInt(slot + 12, port);
+			if (port == OTHER_ADDRESS)
+				otherAddresses.put(username, address);
+			else
+				otherAddresses.remove(username);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of all usernames
+	 */
+	@Override
+	public Collection<String> usernames() {
+		lock.readLock().lock();
+		try {
+			List<String> result = new ArrayList<>(size);
+			for (int slot = 0; slot < capacity * SLOT_SIZE; slot += SLOT_SIZE) {
+				if (slots.getInt(slot) != 0)
+					result.add(readKey(slots.getInt(slot + 4)));
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return how many addresses are kept on the heap because they are not
+	 *         of the form {@code a.b.c.d:port}
+	 */
+	int heapAddresses() {
+		return otherAddresses.size();
+	}
+
+	/**
+	 * Drops all buffers; their memory is released once they are collected.
+	 */
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			segments.clear();
+			segmentPosition = SEGMENT_SIZE;
+			capacity = 16;
+			slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+			size = 0;
+			otherAddresses.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the offset of the slot of the key, or -1 if it is not in the
+	 *         table
+	 */
+	private int find(byte[] key, int hash) {
+		int mask = capacity - 1;
+		for (int i = hash & mask;; i = (i + 1) & mask) {
+			int slot = i * SLOT_SIZE;
+			int h = slots.getInt(slot);
+			if (h == 0)
+				return -1;
+			if (h == hash && keyEquals(slots.getInt(slot + 4), key))
+				return slot;
+		}
+	}
+
+	private int freeSlot(int hash) {
+		int mask = capacity - 1;
+		for (int i = hash & mask;; i = (i + 1) & mask) {
+			if (slots.getInt(i * SLOT_SIZE) == 0)
+				return i * SLOT_SIZE;
+		}
+	}
+
+	private void grow() {
+		ByteBuffer old = slots;
+		int oldCapacity = capacity;
+		if (capacity >= Integer.MAX_VALUE / SLOT_SIZE / 2)
+			throw new IllegalStateException("Address table is full");
+		capacity *= 2;
+		slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+		for (int slot = 0; slot < oldCapacity * SLOT_SIZE; slot += SLOT_SIZE) {
+			int hash = old.getInt(slot);
+			if (hash == 0)
+				continue;
+			int target = freeSlot(hash);
+			slots.putInt(target, hash);
+			slots.putInt(target + 4, old.getInt(slot + 4));
+			slots.putInt(target + 8, old.getInt(slot + 8));
+			slots.putInt(target + 12, old.getInt(slot + 12));
+		}
+	}
+
+	/**
+	 * @return the reference of the stored key: segment number in the upper
+	 *         bits, offset in the lower {@value #SEGMENT_BITS}
+	 */
+	private int append(byte[] key) {
+		if (segmentPosition + 2 + key.length > SEGMENT_SIZE) {
+			if (segments.size() >= (1 << (31 - SEGMENT_BITS)))
+				throw new IllegalStateException("Address table is full");
+			segments.add(ByteBuffer.allocateDirect(SEGMENT_SIZE));
+			segmentPosition = 0;
+		}
+		ByteBuffer segment = segments.get(segments.size() - 1);
+		int ref = (segments.size() - 1) << SEGMENT_BITS | segmentPosition;
+		segment.putShort(segmentPosition, (short) key.length);
+		for (int i = 0; i < key.length; i++) {
+			segment.put(segmentPosition + 2 + i, key[i]);
+		}
+		segmentPosition += 2 + key.length;
+		return ref;
+	}
+
+	private boolean keyEquals(int ref, byte[] key) {
+		ByteBuffer segment = segments.get(ref >>> SEGMENT_BITS);
+		int offset = ref & (SEGMENT_SIZE - 1);
+		if (segment.getShort(offset) != key.length)
+			return false;
+		for (int i = 0; i < key.length; i++) {
+			if (segment.get(offset + 2 + i) != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	private String readKey(int ref) {
+		ByteBuffer segment = segments.get(ref >>> SEGMENT_BITS);
+		int offset = ref & (SEGMENT_SIZE - 1);
+		byte[] key = new byte[segment.getShort(offset)];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = segment.get(offset + 2 + i);
+		}
+		return new String(key, CHARSET);
+	}
+
+	/**
+	 * @return a hash that is never 0, which marks free slots
+	 */
+	private static int hash(String username) {
+		int h = username.hashCode();
+		h ^= h >>> 16;
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * Parses an address of the form {@code a.b.c.d:port}. Numbers with
+	 * leading zeros are refused, so that {@link #format(int, int)} gives back
+	 * exactly the registered string.
+	 * 
+	 * @return the IPv4 address in the upper and the port in the lower 32 bits,
+	 *         or {@link #NOT_IPV4} if the address has a different form; the
+	 *         result is negative for addresses from {@code 128.0.0.0} on
+	 */
+	private static long parse(String address) {
+		long ip = 0;
+		int octets = 0;
+		int value = -1;
+		for (int i = 0; i < address.length(); i++) {
+			char c = address.charAt(i);
+			if (c >= '0' && c <= '9') {
+				if (value == 0)
+					return NOT_IPV4;
+				value = (value < 0 ? 0 : value * 10) + (c - '0');
+				if (value > (octets < 4 ? 255 : 65535))
+					return NOT_IPV4;
+			} else if (value >= 0 && (c == '.' && octets < 3 || c == ':' && octets == 3)) {
+				ip = ip << 8 | value;
+				value = -1;
+				octets++;
+			} else {
+				return NOT_IPV4;
+			}
+		}
+		if (octets != 4 || value < 0)
+			return NOT_IPV4;
+		return ip << 32 | value;
+	}
+
+	private static String format(int ip, int port) {
+		return new StringBuilder(21).append(ip >>> 24).append('.').append(ip >>> 16 & 0xff).append('.')
+				.append(ip >>> 8 & 0xff).append('.').append(ip & 0xff).append(':').append(port).toString();
+	}
+}
@@ -0,0 +1,368 @@
+package nameserver.store;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Makes the addresses of another {@link AddressTable} survive a restart.
+ * <p/>
+ * Every {@link #put(String, String)} is applied to the wrapped table and
+ * appended to a log file. A background thread writes the appended records
+ * and forces them to disk every {@code fsyncInterval} milliseconds, so a
+ * crash loses at most the registrations of the last interval. With an
+ * interval of 0 each registration is forced before {@code put} returns.
+ * <p/>
+ * Once the log grows beyond {@code compactThreshold} bytes, the whole table
+ * is written to a snapshot file and the older logs are deleted. At startup
+ * the snapshot is memory-mapped and read in one pass, after which the logs
+ * written since are replayed. A record that was only partly written when
+ * the process died ends the replay.
+ * <p/>
+ * Snapshot and log records share the format
+ * {@code [int length][UTF-8 username][int length][UTF-8 address]}; the
+ * snapshot starts with a magic number and the generation of the first log
+ * that is not contained in it.
+ */
+public class PersistentAddressTable implements AddressTable {
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int MAGIC = 0x4e534144;
+	private static final String SNAPSHOT = "snapshot";
+	private static final String LOG_PREFIX = "log-";
+
+	private AddressTable table;
+	private File directory;
+	private long fsyncInterval;
+	private long compactThreshold;
+
+	// guarded by this
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private DataOutputStream pendingOut = new DataOutputStream(pending);
+	private FileChannel log;
+	private long generation;
+	private long logSize;
+	// numbers of records put, written to the log and forced to disk
+	private long appended;
+	private long written;
+	private long forced;
+
+	private Object compaction = new Object();
+	private Thread flusher;
+	private volatile boolean closed;
+
+	/**
+	 * Loads the addresses stored in the directory into the table.
+	 *
+	 * @param table
+	 *            holds the addresses in memory, usually empty
+	 * @param directory
+	 *            where snapshot and logs are kept; created if missing
+	 * @param fsyncInterval
+	 *            how long (in milliseconds) registrations are collected before
+	 *            they are forced to disk
+	 * @param compactThreshold
+	 *            the log size (in bytes) that triggers a new snapshot
+	 */
+	public PersistentAddressTable(AddressTable table, File directory, long fsyncInterval, long compactThreshold)
+			throws IOException {
+		this.table = table;
+		this.directory = directory;
+		this.fsyncInterval = fsyncInterval;
+		this.compactThreshold = compactThreshold;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create address store " + directory);
+		load();
+
+		flusher = new Thread("address-store-" + directory.getName()) {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	@Override
+	public String get(String username) {
+		return table.get(username);
+	}
+
+	@Override
+	public void put(String username, String address) {
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("Address store is closed");
+			table.put(username, address);
+			appended++;
+			try {
+				writeRecord(pendingOut, username, address);
+			} catch (IOException e) {
+				// cannot happen for an in-memory stream
+				throw new IllegalStateException(e);
+			}
+		}
+		if (fsyncInterval <= 0) {
+			try {
+				flush();
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot write address store " + directory, e);
+			}
+		}
+	}
+
+	@Override
+	public Collection<String> usernames() {
+		return table.usernames();
+	}
+
+	@Override
+	public int size() {
+		return table.size();
+	}
+
+	/**
+	 * Writes and forces everything registered so far, then releases the files.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		synchronized (this) {
+			log.close();
+		}
+		table.close();
+	}
+
+	/**
+	 * Writes the snapshot of the current table and starts a new log. Called
+	 * by the flush thread whenever the log became too large.
+	 */
+	public void compact() throws IOException {
+		synchronized (compaction) {
+			writeSnapshot();
+		}
+	}
+
+	private void writeSnapshot() throws IOException {
+		long first;
+		synchronized (this) {
+			// everything registered from now on goes to the new log only
+			flushPending();
+			log.force(false);
+			forced = written;
+			log.close();
+			generation++;
+			log = openLog(generation);
+			logSize = 0;
+			first = generation;
+		}
+
+		// the table may change while it is written; those changes are in the
+		// new log as well and will be replayed on top of the snapshot
+		File tmp = new File(directory, SNAPSHOT + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeLong(first);
+			for (String username : table.usernames()) {
+				String address = table.get(username);
+				if (address != null && !address.isEmpty())
+					writeRecord(out, username, address);
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(directory, SNAPSHOT).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		for (long g : logGenerations()) {
+			if (g < first)
+				Files.deleteIfExists(logFile(g).toPath());
+		}
+	}
+
+	private void load() throws IOException {
+		long first = 0;
+		File snapshot = new File(directory, SNAPSHOT);
+		if (snapshot.exists()) {
+			try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.remaining() < 12 || buffer.getInt() != MAGIC)
+					throw new IOException("Not an address snapshot: " + snapshot);
+				first = buffer.getLong();
+				replay(buffer);
+			}
+		}
+
+		generation = first;
+		for (long g : logGenerations()) {
+			if (g < first)
+				continue;
+			try (FileChannel channel = FileChannel.open(logFile(g).toPath(), StandardOpenOption.READ)) {
+				replay(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+				// so that the flush thread soon folds the replayed logs into a snapshot
+				logSize += channel.size();
+			}
+			generation = g;
+		}
+
+		// never append behind a torn record, always start a fresh log
+		generation++;
+		log = openLog(generation);
+	}
+
+	private void replay(ByteBuffer buffer) {
+		while (buffer.remaining() >= 4) {
+			String username = readString(buffer);
+			if (username == null || buffer.remaining() < 4)
+				return;
+			String address = readString(buffer);
+			if (address == null)
+				return;
+			table.put(username, address);
+		}
+	}
+
+	/**
+	 * @return the string, or {@code null} if the record is incomplete
+	 */
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining())
+			return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	private static void writeRecord(DataOutputStream out, String username, String address) throws IOException {
+		byte[] u = username.getBytes(CHARSET);
+		byte[] a = address.getBytes(CHARSET);
+		out.writeInt(u.length);
+		out.write(u);
+		out.writeInt(a.length);
+		out.write(a);
+	}
+
+	private void flushLoop() {
+		while (true) {
+			synchronized (this) {
+				try {
+					// not interrupted, that would close the file channels
+					wait(Math.max(fsyncInterval, 10));
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed)
+					return;
+			}
+			try {
+				flush();
+				if (logSize > compactThreshold)
+					compact();
+			} catch (IOException e) {
+				System.err.println("Error while writing address store " + directory + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending records and forces the log. When this returns,
+	 * every record put before the call is on disk, even if another thread
+	 * wrote it and may still be forcing it.
+	 */
+	private void flush() throws IOException {
+		FileChannel channel;
+		long target;
+		synchronized (this) {
+			flushPending();
+			target = written;
+			if (target <= forced)
+				return;
+			channel = log;
+		}
+		// outside the lock, registrations go on while the disk catches up
+		try {
+			channel.force(false);
+		} catch (ClosedChannelException e) {
+			// compact() forced it before starting the next log
+		}
+		synchronized (this) {
+			forced = Math.max(forced, target);
+		}
+	}
+
+	private void flushPending() throws IOException {
+		if (pending.size() == 0)
+			return;
+		ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+		logSize += buffer.remaining();
+		while (buffer.hasRemaining()) {
+			log.write(buffer);
+		}
+		pending.reset();
+		written = appended;
+	}
+
+	/**
+	 * @return how many records were put and how many of them are forced
+	 */
+	synchronized long[] progress() {
+		return new long[] { appended, forced };
+	}
+
+	private FileChannel openLog(long g) throws IOException {
+		return FileChannel.open(logFile(g).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	private File logFile(long g) {
+		return new File(directory, LOG_PREFIX + g);
+	}
+
+	private List<Long> logGenerations() {
+		List<Long> result = new ArrayList<>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (!name.startsWith(LOG_PREFIX))
+					continue;
+				try {
+					result.add(Long.parseLong(name.substring(LOG_PREFIX.length())));
+				} catch (NumberFormatException e) {
+					// not one of ours
+				}
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+}
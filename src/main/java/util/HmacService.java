@@ -0,0 +1,130 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+
+/**
+ * Computes and checks HMACs with one shared key from any number of threads.
+ * A {@link Mac} is not thread-safe, so every operation borrows an initialized
+ * instance from a pool and returns it afterwards. Instances are only created
+ * when all pooled ones are in use, and at most {@code poolSize} idle ones are
+ * kept.
+ * <p/>
+ * The data is read from the {@link ByteBuffer}s between their position and
+ * limit. Their positions are advanced, as with any other read.
+ */
+public class HmacService {
+
+	private final Key key;
+	private final String algorithm;
+	private final int poolSize;
+	private final ConcurrentLinkedQueue<Mac> idle = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final int length;
+
+	/**
+	 * @param key
+	 *            the secret key, e.g. read with {@link Keys#readSecretKey}
+	 * @param algorithm
+	 *            the MAC algorithm, e.g. {@code HmacSHA256}
+	 * @param poolSize
+	 *            how many idle instances are kept for reuse
+	 * @throws GeneralSecurityException
+	 *             if the algorithm is unknown or does not accept the key
+	 */
+	public HmacService(Key key, String algorithm, int poolSize) throws GeneralSecurityException {
+		this.key = key;
+		this.algorithm = algorithm;
+		this.poolSize = poolSize;
+		// fails early on an unusable key
+		Mac mac = newMac();
+		this.length = mac.getMacLength();
+		release(mac);
+	}
+
+	/**
+	 * @return the number of bytes of every HMAC
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return the HMAC of the concatenation of the buffers' remaining bytes
+	 */
+	public byte[] sign(ByteBuffer... data) {
+		Mac mac = acquire();
+		try {
+			for (ByteBuffer buffer : data) {
+				mac.update(buffer);
+			}
+			return mac.doFinal();
+		} finally {
+			release(mac);
+		}
+	}
+
+	/**
+	 * @return the HMAC of the data
+	 */
+	public byte[] sign(byte[] data) {
+		return sign(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Checks in constant time whether {@code tag} holds the HMAC of the
+	 * concatenation of the buffers' remaining bytes. The tag buffer is not
+	 * moved.
+	 */
+	public boolean verify(ByteBuffer tag, ByteBuffer... data) {
+		byte[] expected = sign(data);
+		if (tag.remaining() != expected.length)
+			return false;
+		int difference = 0;
+		for (int i = 0; i < expected.length; i++) {
+			difference |= expected[i] ^ tag.get(tag.position() + i);
+		}
+		return difference == 0;
+	}
+
+	/**
+	 * Checks in constant time whether {@code tag} is the HMAC of the data.
+	 */
+	public boolean verify(byte[] tag, byte[] data) {
+		return verify(ByteBuffer.wrap(tag), ByteBuffer.wrap(data));
+	}
+
+	private Mac acquire() {
+		Mac mac = idle.poll();
+		if (mac != null) {
+			idleCount.decrementAndGet();
+			return mac;
+		}
+		try {
+			return newMac();
+		} catch (GeneralSecurityException e) {
+			// the constructor already created an instance with the same arguments
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void release(Mac mac) {
+		// doFinal already reset the instance
+		if (idleCount.incrementAndGet() <= poolSize) {
+			idle.offer(mac);
+		} else {
+			idleCount.decrementAndGet();
+		}
+	}
+
+	private Mac newMac() throws GeneralSecurityException {
+		Mac mac = Mac.getInstance(algorithm);
+		mac.init(key);
+		return mac;
+	}
+}
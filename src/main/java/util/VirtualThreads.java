@@ -0,0 +1,30 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads without requiring Java 21 at compile time.
+ */
+public final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Virtual threads only exist since Java 21, so the factory method is
+	 * looked up reflectively.
+	 *
+	 * @return an executor that starts a new virtual thread for each task, or
+	 *         {@code null} if this JVM does not support virtual threads
+	 */
+	public static ExecutorService newPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
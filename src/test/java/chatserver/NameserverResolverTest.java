@@ -0,0 +1,173 @@
+package chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import nameserver.INameserverForChatserver;
+import nameserver.NameserverStub;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import util.Config;
+
+public class NameserverResolverTest {
+
+	private NameserverStub root;
+	private NameserverStub at;
+	private NameserverStub vienna;
+	private NameserverResolver resolver;
+
+	@Before
+	public void setUp() throws Exception {
+		root = NameserverStub.create("ns-root");
+		at = NameserverStub.create("ns-at");
+		vienna = NameserverStub.create("ns-vienna-at");
+		register(root, "at", at);
+		register(root, "vienna.at", vienna);
+		resolver = resolver(60000);
+	}
+
+	@Test
+	public void registerUsersCallsEachZoneOnce() throws Exception {
+		Map<String, String> batch = new HashMap<>();
+		batch.put("alice.vienna.at", "1.1.1.1:1");
+		batch.put("bob.vienna.at", "2.2.2.2:2");
+		batch.put("bill.at", "3.3.3.3:3");
+		batch.put("dan.de", "4.4.4.4:4");
+		batch.put("eve..at", "5.5.5.5:5");
+
+		assertEquals(new HashSet<>(Arrays.asList("dan.de", "eve..at")), resolver.registerUsers(batch));
+		assertEquals(1, at.calls("registerUsers"));
+		assertEquals(1, vienna.calls("registerUsers"));
+		assertEquals("1.1.1.1:1", resolver.lookup("alice.vienna.at"));
+		assertEquals("3.3.3.3:3", resolver.lookup("bill.at"));
+	}
+
+	@Test
+	public void registerUsersDropsCachedLookups() throws Exception {
+		resolver.registerUser("alice.vienna.at", "1.1.1.1:1");
+		assertEquals("1.1.1.1:1", resolver.lookup("alice.vienna.at"));
+
+		resolver.registerUsers(Collections.singletonMap("alice.vienna.at", ""));
+		assertEquals("", resolver.lookup("alice.vienna.at"));
+	}
+
+	@Test
+	public void resolvedZonesAreRememberedUntilInvalidated() throws Exception {
+		assertSame(vienna.stub(), resolver.getZone("vienna.at"));
+		assertSame(vienna.stub(), resolver.getZone("vienna.at"));
+		assertSame(at.stub(), resolver.getZone("at"));
+		assertEquals(1, root.calls("getReplicas"));
+		assertEquals(1, at.calls("getReplicas"));
+
+		resolver.invalidate();
+		assertSame(vienna.stub(), resolver.getZone("vienna.at"));
+		assertEquals(2, root.calls("getReplicas"));
+		assertEquals(2, at.calls("getReplicas"));
+	}
+
+	@Test
+	public void unknownZonesAreNotRemembered() throws Exception {
+		assertNull(resolver.getZone("de"));
+		assertNull(resolver.getZone("graz.at"));
+		assertNull(resolver.getZone("de"));
+		// "de" twice and "at" once
+		assertEquals(3, root.calls("getReplicas"));
+		assertEquals(1, at.calls("getReplicas"));
+	}
+
+	@Test
+	public void zonesAreRememberedUntilTheirTtlExpires() throws Exception {
+		resolver = resolver(300);
+		resolver.registerUser("alice.vienna.at", "1.1.1.1:1");
+		assertEquals(1, root.calls("getReplicas"));
+		assertEquals(1, at.calls("getReplicas"));
+
+		resolver.registerUser("bob.vienna.at", "2.2.2.2:2");
+		assertEquals("2.2.2.2:2", resolver.lookup("bob.vienna.at"));
+		assertEquals(1, root.calls("getReplicas"));
+		assertEquals(1, at.calls("getReplicas"));
+		// the zone is known, so the root does not have to resolve the name
+		assertEquals(0, root.calls("resolve"));
+
+		Thread.sleep(400);
+		resolver.registerUser("carl.vienna.at", "3.3.3.3:3");
+		assertEquals(2, root.calls("getReplicas"));
+		assertEquals(2, at.calls("getReplicas"));
+	}
+
+	@Test
+	public void replicasOfAZoneTakeTurns() throws Exception {
+		NameserverStub replica = NameserverStub.create("ns-vienna-at");
+		register(root, "vienna.at", replica);
+
+		for (int i = 0; i < 4; i++) {
+			resolver.registerUser("user" + i + ".vienna.at", "1.1.1.1:" + i);
+		}
+		assertEquals(2, vienna.calls("registerUser"));
+		assertEquals(2, replica.calls("registerUser"));
+	}
+
+	@Test
+	public void failedReplicaIsDroppedUntilTheZoneExpires() throws Exception {
+		NameserverStub replica = NameserverStub.create("ns-vienna-at");
+		register(root, "vienna.at", replica);
+		resolver = resolver(300);
+		resolver.registerUser("alice.vienna.at", "1.1.1.1:1");
+
+		vienna.setDown(true);
+		int before = vienna.calls("registerUser") + vienna.calls("lookup");
+		for (int i = 0; i < 4; i++) {
+			resolver.registerUser("user" + i + ".vienna.at", "1.1.1.1:" + i);
+			assertEquals("1.1.1.1:" + i, resolver.lookup("user" + i + ".vienna.at"));
+		}
+		// at most the first call reached the failed replica
+		assertTrue(vienna.calls("registerUser") + vienna.calls("lookup") - before <= 1);
+
+		vienna.setDown(false);
+		Thread.sleep(400);
+		int registrations = vienna.calls("registerUser");
+		for (int i = 0; i < 4; i++) {
+			resolver.registerUser("user" + i + ".vienna.at", "");
+		}
+		assertEquals(registrations + 2, vienna.calls("registerUser"));
+	}
+
+	@Test
+	public void failedRootIsAskedAgainLater() throws Exception {
+		root.setDown(true);
+		try {
+			resolver.lookup("alice.vienna.at");
+			fail();
+		} catch (RemoteException e) {
+			// expected
+		}
+		root.setDown(false);
+		resolver.registerUser("alice.vienna.at", "1.1.1.1:1");
+		assertEquals("1.1.1.1:1", resolver.lookup("alice.vienna.at"));
+	}
+
+	private NameserverResolver resolver(long zoneTtl) {
+		return new NameserverResolver(new Config("chatserver"), zoneTtl, new AddressCache(100, 60000, 5000)) {
+			@Override
+			public INameserverForChatserver getRoot() {
+				return root.stub();
+			}
+		};
+	}
+
+	private static void register(NameserverStub parent, String zone, NameserverStub nameserver) throws Exception {
+		parent.nameserver().registerNameserver(zone, nameserver.stub(), nameserver.stub());
+	}
+}
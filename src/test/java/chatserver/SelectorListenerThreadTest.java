@@ -0,0 +1,142 @@
+package chatserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import util.Config;
+import util.NullOutputStream;
+
+public class SelectorListenerThreadTest {
+
+	private ServerSocketChannel serverChannel;
+	private SessionRegistry sessions;
+	private SelectorListenerThread listener;
+
+	@Before
+	public void setUp() throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		Chatserver chatserver = new Chatserver("chatserver", new Config("chatserver"), null, new PrintStream(
+				NullOutputStream.getInstance()));
+		sessions = new SessionRegistry(new OnlineUserIndex());
+		listener = new SelectorListenerThread(serverChannel, chatserver, sessions, 2, 2, 16,
+				SlowConsumerPolicy.DISCONNECT);
+		listener.start();
+	}
+
+	@After
+	public void tearDown() {
+		listener.exit();
+	}
+
+	@Test
+	public void closedConnectionsLeaveTheRegistry() throws Exception {
+		Socket[] clients = new Socket[10];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = connect();
+		}
+		awaitSessions(clients.length);
+		for (Socket client : clients) {
+			client.close();
+		}
+		awaitSessions(0);
+	}
+
+	@Test
+	public void answersWithTheCorrelationId() throws Exception {
+		Socket client = connect();
+		send(client, "#7 !lastMsg");
+		assertEquals("#7 You must log in first!", readLine(client));
+		send(client, "!lastMsg");
+		assertEquals("You must log in first!", readLine(client));
+		client.close();
+	}
+
+	@Test
+	public void failingCommandClosesOnlyItsSession() throws Exception {
+		Socket broken = connect();
+		Socket other = connect();
+		awaitSessions(2);
+
+		// no username, so the command fails with an exception
+		send(broken, "!login");
+		assertClosed(broken);
+		awaitSessions(1);
+
+		send(other, "!lastMsg");
+		assertEquals("You must log in first!", readLine(other));
+		other.close();
+	}
+
+	@Test
+	public void overlongLineClosesTheSession() throws Exception {
+		Socket client = connect();
+		awaitSessions(1);
+		byte[] line = new byte[70000];
+		Arrays.fill(line, (byte) 'x');
+		try {
+			OutputStream out = client.getOutputStream();
+			out.write(line);
+			out.flush();
+		} catch (IOException e) {
+			// the server may hang up before everything is written
+		}
+		assertClosed(client);
+		awaitSessions(0);
+	}
+
+	@Test
+	public void exitClosesAllSessions() throws Exception {
+		Socket client = connect();
+		awaitSessions(1);
+		listener.exit();
+		assertClosed(client);
+		awaitSessions(0);
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	private static void send(Socket socket, String line) throws IOException {
+		socket.getOutputStream().write((line + "\n").getBytes());
+		socket.getOutputStream().flush();
+	}
+
+	private static String readLine(Socket socket) throws IOException {
+		return new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+	}
+
+	private static void assertClosed(Socket socket) throws IOException {
+		try {
+			assertEquals(-1, socket.getInputStream().read());
+		} catch (SocketException e) {
+			// reset because the server did not read everything we sent
+		}
+		socket.close();
+	}
+
+	private void awaitSessions(int count) throws InterruptedException {
+		for (int i = 0; i < 100 && sessions.size() != count; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(count, sessions.size());
+	}
+}
@@ -0,0 +1,105 @@
+package chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionRegistryTest {
+
+	private static final Connection CONNECTION = new Connection() {
+		@Override
+		public void writeLine(String line) {
+		}
+
+		@Override
+		public void broadcast(ByteBuffer line) {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	private OnlineUserIndex onlineUsers;
+	private SessionRegistry sessions;
+	private User alice;
+
+	@Before
+	public void setUp() {
+		onlineUsers = new OnlineUserIndex();
+		sessions = new SessionRegistry(onlineUsers);
+		alice = new User("alice.vienna.at", "12345", false);
+	}
+
+	@Test
+	public void removingASessionLogsItOut() {
+		ClientThread session = open();
+		assertTrue(sessions.login(alice, session));
+		assertTrue(alice.isOnline());
+		assertEquals(1, onlineUsers.size());
+
+		sessions.remove(session);
+		assertOffline();
+		assertEquals(0, sessions.size());
+	}
+
+	@Test
+	public void closedSessionsCannotLogIn() {
+		ClientThread session = open();
+		sessions.remove(session);
+		assertFalse(sessions.login(alice, session));
+		assertOffline();
+	}
+
+	@Test
+	public void userStaysOnlineWhileLoggedInElsewhere() {
+		ClientThread first = open();
+		ClientThread second = open();
+		sessions.login(alice, first);
+		sessions.login(alice, second);
+
+		sessions.remove(first);
+		assertTrue(sessions.isLoggedIn(alice.getUsername()));
+		assertTrue(alice.isOnline());
+		assertEquals(1, sessions.getLoggedInSessions().size());
+
+		sessions.remove(second);
+		assertOffline();
+	}
+
+	@Test
+	public void loginRacingWithCloseNeverLeavesTheUserOnline() throws InterruptedException {
+		for (int i = 0; i < 1000; i++) {
+			final ClientThread session = open();
+			Thread login = new Thread() {
+				@Override
+				public void run() {
+					sessions.login(alice, session);
+				}
+			};
+			login.start();
+			sessions.remove(session);
+			login.join();
+			assertOffline();
+		}
+		assertEquals(0, sessions.size());
+	}
+
+	private ClientThread open() {
+		ClientThread session = new ClientThread(CONNECTION, null, sessions);
+		session.register();
+		return session;
+	}
+
+	private void assertOffline() {
+		assertFalse(sessions.isLoggedIn(alice.getUsername()));
+		assertFalse(alice.isOnline());
+		assertTrue(sessions.getLoggedInSessions().isEmpty());
+		assertEquals(0, onlineUsers.size());
+	}
+}
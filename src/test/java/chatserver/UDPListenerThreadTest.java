@@ -0,0 +1,112 @@
+package chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import util.Config;
+import util.NullOutputStream;
+
+public class UDPListenerThreadTest {
+
+	private DatagramSocket server;
+	private DatagramSocket client;
+	private ListStub chatserver;
+	private UDPListenerThread listener;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		client.setSoTimeout(5000);
+		chatserver = new ListStub();
+		listener = new UDPListenerThread(server, chatserver, 1200, 0);
+		listener.start();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		listener.exit();
+		listener.join(1000);
+		client.close();
+	}
+
+	@Test
+	public void answersListAndTagsTheResponse() throws IOException {
+		chatserver.response = "Online users: \nalice.vienna.at\n".getBytes();
+		send("!list");
+		assertEquals("Online users: \nalice.vienna.at\n", receive());
+		send("#3 !list");
+		assertEquals("#3 Online users: \nalice.vienna.at\n", receive());
+		send("!lookup");
+		assertEquals("!error provided command is not !list", receive());
+	}
+
+	@Test
+	public void listTooLongForOneDatagramIsAnError() throws IOException {
+		chatserver.response = new byte[70000];
+		Arrays.fill(chatserver.response, (byte) 'x');
+		send("#4 !list");
+		String response = receive();
+		assertTrue(response, response.startsWith("#4 !error"));
+
+		chatserver.response = "There are no online users.".getBytes();
+		send("!list");
+		assertEquals("There are no online users.", receive());
+	}
+
+	@Test
+	public void failedSendDoesNotEndTheReceiver() throws IOException {
+		// a chunk that no datagram can carry
+		chatserver.chunks = new byte[][] { new byte[70000] };
+		send("#5 !list chunked");
+		chatserver.response = "There are no online users.".getBytes();
+		send("#6 !list");
+		assertEquals("#6 There are no online users.", receive());
+	}
+
+	private void send(String request) throws IOException {
+		byte[] data = request.getBytes();
+		client.send(new DatagramPacket(data, data.length, server.getLocalSocketAddress()));
+	}
+
+	private String receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+		client.receive(packet);
+		return new String(packet.getData(), 0, packet.getLength());
+	}
+
+	/**
+	 * Answers {@code !list} and {@code !list chunked} with whatever the test
+	 * sets.
+	 */
+	private static class ListStub extends Chatserver {
+
+		private volatile byte[] response;
+		private volatile byte[][] chunks;
+
+		ListStub() {
+			super("chatserver", new Config("chatserver"), null, new PrintStream(NullOutputStream.getInstance()));
+		}
+
+		@Override
+		public byte[] getOnlineUsers() {
+			return response;
+		}
+
+		@Override
+		public byte[][] getOnlineUsersChunks(int chunkSize) {
+			return chunks;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ListRequesterTest {
+
+	private DatagramSocket server;
+	private DatagramSocket client;
+	private ListRequester requester;
+	private SocketAddress clientAddress;
+	private String request;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		server.setSoTimeout(5000);
+		client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		requester = new ListRequester(client, server.getLocalSocketAddress(), 300, 3);
+	}
+
+	@After
+	public void tearDown() {
+		requester.close();
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void reassemblesChunksInAnyOrder() throws Exception {
+		CompletableFuture<String> response = requester.request();
+		String id = receive();
+		assertEquals("!list chunked", request);
+		send(id + " !chunk 7 2 3\nthree");
+		send(id + " !chunk 7 0 3\none ");
+		// duplicates do not count twice
+		send(id + " !chunk 7 0 3\none ");
+		send(id + " !chunk 7 1 3\ntwo ");
+		assertEquals("one two three", get(response));
+	}
+
+	@Test
+	public void matchesResponsesByRequestId() throws Exception {
+		CompletableFuture<String> first = requester.request();
+		CompletableFuture<String> second = requester.request();
+		assertEquals("#1", receive());
+		assertEquals("#2", receive());
+		send("#2 !chunk 7 0 2\nfor ");
+		send("#1 !chunk 7 0 1\nfor the first");
+		send("#2 !chunk 7 1 2\nthe second");
+		assertEquals("for the first", get(first));
+		assertEquals("for the second", get(second));
+	}
+
+	@Test
+	public void unchunkedResponses() throws Exception {
+		CompletableFuture<String> response = requester.request();
+		String id = receive();
+		send(id + " Some error occurred.");
+		assertEquals("Some error occurred.", get(response));
+	}
+
+	@Test
+	public void ignoresUnknownAndMalformedDatagrams() throws Exception {
+		CompletableFuture<String> response = requester.request();
+		String id = receive();
+		send("garbage");
+		send("#x !chunk 7 0 1\nx");
+		send("#999 !chunk 7 0 1\nnot requested");
+		send(id + " !chunk 7 5 2\nout of range");
+		send(id + " !chunk 7 a b\n");
+		send(id + " !chunk x 0 1\n");
+		assertFalse(response.isDone());
+		send(id + " !chunk 7 0 1\nanswer");
+		assertEquals("answer", get(response));
+	}
+
+	@Test
+	public void retransmitsUntilTheResponseIsComplete() throws Exception {
+		CompletableFuture<String> response = requester.request();
+		String id = receive();
+		send(id + " !chunk 7 0 2\nkept ");
+		// the missing chunk arrives after the request was sent again
+		assertEquals(id, receive());
+		send(id + " !chunk 7 1 2\nacross attempts");
+		assertEquals("kept across attempts", get(response));
+	}
+
+	@Test
+	public void restartsWhenTheResponseIsSplitDifferently() throws Exception {
+		CompletableFuture<String> response = requester.request();
+		String id = receive();
+		send(id + " !chunk 7 0 2\nstale ");
+		send(id + " !chunk 7 0 1\nfresh");
+		assertEquals("fresh", get(response));
+	}
+
+	@Test
+	public void neverMixesChunksOfDifferentSnapshots() throws Exception {
+		CompletableFuture<String> response = requester.request();
+		String id = receive();
+		send(id + " !chunk 7 0 2\nalice ");
+		// somebody logged in, the list has as many chunks but other contents
+		send(id + " !chunk 8 1 2\nbill carl");
+		assertFalse(response.isDone());
+		send(id + " !chunk 8 0 2\nalice ");
+		assertEquals("alice bill carl", get(response));
+	}
+
+	@Test
+	public void failsAfterAllAttempts() throws Exception {
+		CompletableFuture<String> response = requester.request();
+		String id = receive();
+		assertEquals(id, receive());
+		assertEquals(id, receive());
+		assertFails(response, SocketTimeoutException.class);
+	}
+
+	@Test
+	public void closeFailsOutstandingAndLaterRequests() throws Exception {
+		CompletableFuture<String> outstanding = requester.request();
+		requester.close();
+		assertFails(outstanding, IOException.class);
+		assertFails(requester.request(), IOException.class);
+	}
+
+	/**
+	 * Receives the next request at the server and keeps it without its id
+	 * in {@link #request}.
+	 *
+	 * @return its id, e.g. {@code #1}
+	 */
+	private String receive() throws IOException {
+		byte[] buffer = new byte[1024];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		server.receive(packet);
+		clientAddress = packet.getSocketAddress();
+		String data = new String(buffer, 0, packet.getLength(), StandardCharsets.UTF_8);
+		int space = data.indexOf(' ');
+		request = data.substring(space + 1);
+		return data.substring(0, space);
+	}
+
+	private void send(String data) throws IOException {
+		byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+		server.send(new DatagramPacket(bytes, bytes.length, clientAddress));
+	}
+
+	private static String get(CompletableFuture<String> response) throws Exception {
+		return response.get(5, TimeUnit.SECONDS);
+	}
+
+	private static void assertFails(CompletableFuture<String> response, Class<? extends Exception> cause)
+			throws Exception {
+		try {
+			fail("Unexpected response " + get(response));
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause().toString(), cause.isInstance(e.getCause()));
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import util.HmacService;
+
+public class PrivateFramesTest {
+
+	private HmacService hmacs;
+
+	@Before
+	public void setUp() throws Exception {
+		hmacs = hmacs("0123456789abcdef0123456789abcdef");
+	}
+
+	@Test
+	public void messageRoundTrip() throws IOException {
+		ByteBuffer frame = read(message(hmacs, "alice.vienna.at", "hello, b\u00e4rbel"));
+		assertEquals(PrivateFrames.MESSAGE, PrivateFrames.type(frame));
+		assertTrue(PrivateFrames.verify(hmacs, frame));
+		assertEquals("alice.vienna.at", decode(PrivateFrames.sender(frame)));
+		assertEquals("hello, b\u00e4rbel", decode(PrivateFrames.payload(frame)));
+	}
+
+	@Test
+	public void emptyPayload() throws IOException {
+		ByteBuffer frame = read(message(hmacs, "alice.vienna.at", ""));
+		assertTrue(PrivateFrames.verify(hmacs, frame));
+		assertEquals("", decode(PrivateFrames.payload(frame)));
+	}
+
+	@Test
+	public void changedFramesDoNotVerify() throws IOException {
+		byte[] bytes = bytes(message(hmacs, "alice.vienna.at", "hello"));
+		for (int i = 4; i < bytes.length; i++) {
+			byte[] changed = bytes.clone();
+			changed[i] ^= 1;
+			ByteBuffer frame;
+			try {
+				frame = PrivateFrames.read(new DataInputStream(new ByteArrayInputStream(changed)));
+			} catch (IOException e) {
+				// refused before checking the tag, e.g. because of the sender length
+				continue;
+			}
+			assertFalse("byte " + i, PrivateFrames.verify(hmacs, frame));
+		}
+	}
+
+	@Test
+	public void otherKeysDoNotVerify() throws Exception {
+		HmacService other = hmacs("fedcba9876543210fedcba9876543210");
+		assertFalse(PrivateFrames.verify(other, read(message(hmacs, "alice.vienna.at", "hello"))));
+	}
+
+	@Test
+	public void repliesAreBoundToTheirMessage() throws IOException {
+		ByteBuffer first = message(hmacs, "alice.vienna.at", "first");
+		ByteBuffer second = message(hmacs, "alice.vienna.at", "second");
+		ByteBuffer received = read(first.duplicate());
+
+		ByteBuffer ack = read(PrivateFrames.reply(hmacs, PrivateFrames.ACK, PrivateFrames.tag(received)));
+		assertEquals(PrivateFrames.ACK, PrivateFrames.type(ack));
+		assertTrue(PrivateFrames.verifyReply(hmacs, ack, PrivateFrames.sentTag(first)));
+		assertFalse(PrivateFrames.verifyReply(hmacs, ack, PrivateFrames.sentTag(second)));
+
+		ByteBuffer tampered = read(PrivateFrames.reply(hmacs, PrivateFrames.TAMPERED, PrivateFrames.tag(received)));
+		assertEquals(PrivateFrames.TAMPERED, PrivateFrames.type(tampered));
+		assertTrue(PrivateFrames.verifyReply(hmacs, tampered, PrivateFrames.sentTag(first)));
+	}
+
+	@Test
+	public void replyTypeIsSigned() throws IOException {
+		ByteBuffer message = message(hmacs, "alice.vienna.at", "hello");
+		byte[] bytes = bytes(PrivateFrames.reply(hmacs, PrivateFrames.TAMPERED, PrivateFrames.sentTag(message)));
+		bytes[4] = PrivateFrames.ACK;
+		ByteBuffer reply = PrivateFrames.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+		assertFalse(PrivateFrames.verifyReply(hmacs, reply, PrivateFrames.sentTag(message)));
+	}
+
+	@Test
+	public void framesFollowEachOther() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrivateFrames.write(out, message(hmacs, "alice.vienna.at", "one"));
+		PrivateFrames.write(out, message(hmacs, "bill.de", "two"));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals("one", decode(PrivateFrames.payload(PrivateFrames.read(in))));
+		assertEquals("bill.de", decode(PrivateFrames.sender(PrivateFrames.read(in))));
+		assertNull(PrivateFrames.read(in));
+	}
+
+	@Test
+	public void malformedFrames() {
+		byte[][] inputs = {
+				// cut off within the frame
+				Arrays.copyOf(bytes(message(hmacs, "alice.vienna.at", "hello")), 20),
+				// too short for type, tag and sender length
+				{ 0, 0, 0, 3, 1, 2, 3 },
+				// longer than allowed
+				{ 0x7f, 0, 0, 0 },
+				// sender longer than the frame
+				senderLength(bytes(message(hmacs, "alice", "")), (short) 100),
+				senderLength(bytes(message(hmacs, "alice", "")), (short) -1) };
+		for (int i = 0; i < inputs.length; i++) {
+			try {
+				PrivateFrames.read(new DataInputStream(new ByteArrayInputStream(inputs[i])));
+				fail("input " + i);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void senderTooLong() {
+		StringBuilder sender = new StringBuilder();
+		while (sender.length() <= Short.MAX_VALUE) {
+			sender.append("alice");
+		}
+		message(hmacs, sender.toString(), "hello");
+	}
+
+	@Test
+	public void textLineWithOffer() {
+		String offer = PrivateFrames.offer(hmacs, "TAG");
+		String[] parts = PrivateFrames.splitLine("TAG;alice.vienna.at :hi; there;" + offer);
+		assertArrayEquals(new String[] { "TAG", "alice.vienna.at :hi; there", offer }, parts);
+		assertTrue(PrivateFrames.isOffer(hmacs, parts[2], parts[0]));
+		assertFalse(PrivateFrames.isOffer(hmacs, parts[2], "OTHER"));
+	}
+
+	@Test
+	public void textLineWithoutOffer() {
+		assertArrayEquals(new String[] { "TAG", "alice.vienna.at :hi; there", null },
+				PrivateFrames.splitLine("TAG;alice.vienna.at :hi; there"));
+		assertArrayEquals(new String[] { "TAG", "", null }, PrivateFrames.splitLine("TAG;"));
+		assertNull(PrivateFrames.splitLine("no separator"));
+	}
+
+	@Test
+	public void forgedOffers() {
+		assertFalse(PrivateFrames.isOffer(hmacs, null, "TAG"));
+		assertFalse(PrivateFrames.isOffer(hmacs, "!frames", "TAG"));
+		assertFalse(PrivateFrames.isOffer(hmacs, "!frames not*base64", "TAG"));
+		assertFalse(PrivateFrames.isOffer(hmacs, "!frames AAAA", "TAG"));
+	}
+
+	@Test
+	public void readLineLeavesTheRestOfTheStream() throws IOException {
+		InputStream in = new ByteArrayInputStream("first\r\nsecond\n\u0000\u0001".getBytes(StandardCharsets.UTF_8));
+		assertEquals("first", PrivateFrames.readLine(in));
+		assertEquals("second", PrivateFrames.readLine(in));
+		assertEquals(0, in.read());
+		assertEquals(1, in.read());
+		assertNull(PrivateFrames.readLine(in));
+	}
+
+	@Test
+	public void readLineWithoutTerminator() throws IOException {
+		InputStream in = new ByteArrayInputStream("last".getBytes(StandardCharsets.UTF_8));
+		assertEquals("last", PrivateFrames.readLine(in));
+		assertNull(PrivateFrames.readLine(in));
+	}
+
+	@Test(expected = IOException.class)
+	public void readLineTooLong() throws IOException {
+		PrivateFrames.readLine(new ByteArrayInputStream(new byte[PrivateFrames.MAX_LENGTH + 1]));
+	}
+
+	@Test
+	public void lineRoundTrip() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrivateFrames.writeLine(out, PrivateFrames.ACCEPT);
+		assertEquals(PrivateFrames.ACCEPT, PrivateFrames.readLine(new ByteArrayInputStream(out.toByteArray())));
+	}
+
+	private static HmacService hmacs(String key) throws GeneralSecurityException {
+		return new HmacService(new SecretKeySpec(key.getBytes(StandardCharsets.US_ASCII), "HmacSHA256"),
+				"HmacSHA256", 2);
+	}
+
+	private static ByteBuffer message(HmacService hmacs, String sender, String payload) {
+		return PrivateFrames.message(hmacs, ByteBuffer.wrap(sender.getBytes(StandardCharsets.UTF_8)),
+				ByteBuffer.wrap(payload.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static byte[] bytes(ByteBuffer frame) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			PrivateFrames.write(out, frame);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	private static ByteBuffer read(ByteBuffer frame) throws IOException {
+		return PrivateFrames.read(new DataInputStream(new ByteArrayInputStream(bytes(frame))));
+	}
+
+	private static byte[] senderLength(byte[] frame, short length) {
+		ByteBuffer.wrap(frame).putShort(4 + 1 + PrivateFrames.TAG_LENGTH, length);
+		return frame;
+	}
+
+	private static String decode(ByteBuffer buffer) {
+		return StandardCharsets.UTF_8.decode(buffer).toString();
+	}
+}
@@ -0,0 +1,70 @@
+package nameserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DomainNamesTest {
+
+	@Test
+	public void splitsAtTheFirstDot() {
+		int dot = DomainNames.split("alice.vienna.at");
+		assertEquals(5, dot);
+		assertEquals("alice", DomainNames.label("alice.vienna.at", dot));
+		assertEquals("vienna.at", DomainNames.zone("alice.vienna.at", dot));
+	}
+
+	@Test
+	public void nameWithoutZone() {
+		assertEquals(DomainNames.NO_ZONE, DomainNames.split("alice"));
+		assertEquals("alice", DomainNames.label("alice", DomainNames.NO_ZONE));
+		assertEquals("", DomainNames.zone("alice", DomainNames.NO_ZONE));
+	}
+
+	@Test
+	public void firstLabelMayContainAnythingButADot() {
+		int dot = DomainNames.split("al-1ce_!.at");
+		assertEquals(8, dot);
+		assertEquals("al-1ce_!", DomainNames.label("al-1ce_!.at", dot));
+	}
+
+	@Test
+	public void zoneIsLowerCase() {
+		int dot = DomainNames.split("Alice.Vienna.AT");
+		assertEquals("Alice", DomainNames.label("Alice.Vienna.AT", dot));
+		assertEquals("vienna.at", DomainNames.zone("Alice.Vienna.AT", dot));
+	}
+
+	@Test
+	public void invalidZones() {
+		String[] names = { "alice.", "alice..at", "alice.vienna..at", "alice.vienna.at.", "alice.vienna.a1",
+				"alice.vi-enna.at", "alice.\u00fcmlaut.at", ".", "..at" };
+		for (String name : names) {
+			assertEquals(name, DomainNames.INVALID, DomainNames.split(name));
+		}
+	}
+
+	@Test
+	public void emptyFirstLabel() {
+		assertEquals(0, DomainNames.split(".at"));
+		assertEquals("", DomainNames.label(".at", 0));
+		assertEquals("at", DomainNames.zone(".at", 0));
+	}
+
+	@Test
+	public void validDomains() {
+		assertTrue(DomainNames.isValid("at"));
+		assertTrue(DomainNames.isValid("vienna.at"));
+		assertTrue(DomainNames.isValid("Vienna.AT"));
+	}
+
+	@Test
+	public void invalidDomains() {
+		String[] domains = { "", ".", ".at", "at.", "vienna..at", "vienna.at1", "vienna at", "wien-at" };
+		for (String domain : domains) {
+			assertFalse(domain, DomainNames.isValid(domain));
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package nameserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.Config;
+import util.NullOutputStream;
+
+/**
+ * Stands in for the RMI stub of a {@link Nameserver} that runs in the test's
+ * JVM without being exported. It counts the calls it passes on, can delay
+ * them, and can be taken down, after which every call fails like one to a
+ * nameserver that went away.
+ */
+public class NameserverStub implements InvocationHandler {
+
+	private final Nameserver nameserver;
+	private final INameserver stub;
+	private final ConcurrentHashMap<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Long> delays = new ConcurrentHashMap<>();
+	private volatile boolean down;
+
+	public NameserverStub(Nameserver nameserver) {
+		this.nameserver = nameserver;
+		this.stub = (INameserver) Proxy.newProxyInstance(INameserver.class.getClassLoader(),
+				new Class<?>[] { INameserver.class }, this);
+	}
+
+	/**
+	 * @param config
+	 *            the name of the nameserver's configuration, e.g. "ns-at"
+	 */
+	public static NameserverStub create(String config) {
+		return create(config, new Config(config));
+	}
+
+	public static NameserverStub create(String name, Config config) {
+		return new NameserverStub(new Nameserver(name, config, new ByteArrayInputStream(new byte[0]), new PrintStream(
+				NullOutputStream.getInstance())));
+	}
+
+	public Nameserver nameserver() {
+		return nameserver;
+	}
+
+	public INameserver stub() {
+		return stub;
+	}
+
+	/**
+	 * @return how often the method was called through the stub
+	 */
+	public int calls(String method) {
+		AtomicInteger count = calls.get(method);
+		return count == null ? 0 : count.get();
+	}
+
+	public void setDown(boolean down) {
+		this.down = down;
+	}
+
+	/**
+	 * Makes every later call of the method wait before it is passed on.
+	 */
+	public void setDelay(String method, long millis) {
+		delays.put(method, millis);
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			// stubs are compared by identity, like RMI stubs of one object
+			switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			default:
+				return "stub of " + nameserver;
+			}
+		}
+		AtomicInteger count = calls.putIfAbsent(method.getName(), new AtomicInteger(1));
+		if (count != null)
+			count.incrementAndGet();
+		Long delay = delays.get(method.getName());
+		if (delay != null)
+			Thread.sleep(delay);
+		if (down)
+			throw new ConnectException("Connection refused");
+		try {
+			return method.invoke(nameserver, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package nameserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import util.Config;
+
+public class NameserverTest {
+
+	private Nameserver root;
+	private NameserverStub at;
+	private NameserverStub vienna;
+
+	@Before
+	public void setUp() throws Exception {
+		root = NameserverStub.create("ns-root").nameserver();
+		at = NameserverStub.create("ns-at");
+		vienna = NameserverStub.create("ns-vienna-at");
+		root.registerNameserver("at", at.stub(), at.stub());
+		root.registerNameserver("vienna.at", vienna.stub(), vienna.stub());
+	}
+
+	@Test
+	public void registerUsersForwardsOneCallPerZone() throws Exception {
+		Map<String, String> batch = new HashMap<>();
+		batch.put("alice.vienna.at", "1.1.1.1:1");
+		batch.put("bob.vienna.at", "2.2.2.2:2");
+		batch.put("bill.at", "3.3.3.3:3");
+		batch.put("carl", "4.4.4.4:4");
+		batch.put("dan.de", "5.5.5.5:5");
+		batch.put("eve..at", "6.6.6.6:6");
+
+		Set<String> failed = root.registerUsers(batch);
+		assertEquals(new HashSet<>(Arrays.asList("dan.de", "eve..at")), failed);
+		assertEquals(1, at.calls("registerUsers"));
+		assertEquals(1, vienna.calls("registerUsers"));
+
+		assertEquals("1.1.1.1:1", vienna.nameserver().getAddresses().get("alice"));
+		assertEquals("2.2.2.2:2", vienna.nameserver().getAddresses().get("bob"));
+		assertEquals("3.3.3.3:3", at.nameserver().getAddresses().get("bill"));
+		assertEquals("4.4.4.4:4", root.getAddresses().get("carl"));
+	}
+
+	@Test
+	public void replicaThatDoesNotAnswerInTimeIsEvicted() throws Exception {
+		Config config = new Config("ns-root");
+		config.setProperty("heartbeat.timeout", 200);
+		Nameserver root = NameserverStub.create("ns-root", config).nameserver();
+		NameserverStub slow = NameserverStub.create("ns-at");
+		root.registerNameserver("at", at.stub(), at.stub());
+		root.registerNameserver("at", slow.stub(), slow.stub());
+		assertEquals(2, root.getReplicas("at").size());
+
+		slow.setDelay("ping", 5000);
+		long start = System.currentTimeMillis();
+		// heartbeat.misses is 2
+		root.checkZones();
+		assertEquals(2, root.getReplicas("at").size());
+		root.checkZones();
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertEquals(Collections.singletonList(at.stub()), root.getReplicas("at"));
+	}
+
+	@Test
+	public void registrationDoesNotWaitForTheReplicaPush() throws Exception {
+		for (int i = 0; i < 25000; i++) {
+			at.nameserver().getAddresses().put("user" + i, "10.0.0.1:" + i);
+		}
+		NameserverStub joining = NameserverStub.create("ns-at");
+		joining.setDelay("replicateAddresses", 500);
+
+		long start = System.currentTimeMillis();
+		root.registerNameserver("at", joining.stub(), joining.stub());
+		assertTrue(System.currentTimeMillis() - start < 500);
+
+		for (int i = 0; i < 100 && joining.nameserver().getAddresses().size() < 25000; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(25000, joining.nameserver().getAddresses().size());
+		// in batches of 10000
+		assertEquals(3, joining.calls("replicateAddresses"));
+	}
+
+	@Test
+	public void listsAddressesSortedByPrefixAndPage() throws Exception {
+		Map<String, String> batch = new HashMap<>();
+		for (int i = 0; i < 60; i++) {
+			batch.put(String.format("user%02d", i), "10.0.0.1:" + i);
+		}
+		batch.put("alice", "1.1.1.1:1");
+		batch.put("bob", "2.2.2.2:2");
+		vienna.nameserver().registerUsers(batch);
+		// later registrations show up as well
+		vienna.nameserver().registerUser("bill", "3.3.3.3:3");
+		vienna.nameserver().registerUser("bob", "");
+
+		assertEquals("1. bill 3.3.3.3:3\n", vienna.nameserver().addresses(0, "b"));
+		String first = vienna.nameserver().addresses(1, "user");
+		assertTrue(first, first.startsWith("1. user00 10.0.0.1:0\n"));
+		assertTrue(first, first.endsWith("50. user49 10.0.0.1:49\nMore on the next page: !addresses 2 user\n"));
+		String second = vienna.nameserver().addresses(2, "user");
+		assertTrue(second, second.startsWith("51. user50 10.0.0.1:50\n"));
+		assertTrue(second, second.endsWith("60. user59 10.0.0.1:59\n"));
+	}
+
+	@Test
+	public void registeredUsersCanBeResolvedAndRemoved() throws Exception {
+		root.registerUsers(Collections.singletonMap("alice.vienna.at", "1.1.1.1:1"));
+		assertEquals("1.1.1.1:1", root.resolve("alice.vienna.at"));
+
+		root.registerUsers(Collections.singletonMap("alice.vienna.at", ""));
+		assertEquals("", root.resolve("alice.vienna.at"));
+	}
+}
@@ -0,0 +1,45 @@
+package nameserver;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimeoutSocketFactoryTest {
+
+	private ServerSocket server;
+
+	@Before
+	public void setUp() throws IOException {
+		// accepts connections but never answers
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+	}
+
+	@Test
+	public void readFromASilentServerTimesOut() throws IOException {
+		Socket socket = new TimeoutSocketFactory(1000, 200).createSocket(server.getInetAddress().getHostAddress(),
+				server.getLocalPort());
+		long start = System.currentTimeMillis();
+		try {
+			socket.getInputStream().read();
+			fail("read returned");
+		} catch (SocketTimeoutException e) {
+			assertTrue(System.currentTimeMillis() - start < 2000);
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package nameserver.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapAddressTableTest {
+
+	private OffHeapAddressTable table;
+
+	@Before
+	public void setUp() {
+		table = new OffHeapAddressTable(16);
+	}
+
+	@Test
+	public void ipv4AddressesOfAllRangesStayOffHeap() {
+		String[] addresses = { "0.0.0.0:0", "10.0.0.1:80", "127.255.255.255:65535", "128.0.0.0:0",
+				"172.16.4.2:1024", "192.168.0.1:8080", "224.0.0.251:5353", "255.255.255.255:65535" };
+		for (int i = 0; i < addresses.length; i++) {
+			table.put("user" + i, addresses[i]);
+		}
+		for (int i = 0; i < addresses.length; i++) {
+			assertEquals(addresses[i], table.get("user" + i));
+		}
+		assertEquals(0, table.heapAddresses());
+	}
+
+	@Test
+	public void otherAddressesAreKeptAsRegistered() {
+		String[] addresses = { "localhost:8080", "01.2.3.4:5", "1.2.3.4:05", "1.2.3.4:65536", "256.0.0.1:80",
+				"1.2.3:80", "1.2.3.4.5:80", "1.2.3.4", "[::1]:80", "1.2.3.4:" };
+		for (int i = 0; i < addresses.length; i++) {
+			table.put("user" + i, addresses[i]);
+		}
+		for (int i = 0; i < addresses.length; i++) {
+			assertEquals(addresses[i], table.get("user" + i));
+		}
+		assertEquals(addresses.length, table.heapAddresses());
+	}
+
+	@Test
+	public void missingAndEmptyAddresses() {
+		assertNull(table.get("alice"));
+		table.put("alice", "");
+		assertEquals("", table.get("alice"));
+		assertEquals(1, table.size());
+	}
+
+	@Test
+	public void overwritesSwitchBetweenForms() {
+		table.put("alice", "200.1.2.3:4000");
+		table.put("alice", "localhost:4000");
+		assertEquals("localhost:4000", table.get("alice"));
+		assertEquals(1, table.heapAddresses());
+
+		table.put("alice", "10.1.2.3:4000");
+		assertEquals("10.1.2.3:4000", table.get("alice"));
+		assertEquals(0, table.heapAddresses());
+
+		table.put("alice", "");
+		assertEquals("", table.get("alice"));
+		assertEquals(1, table.size());
+	}
+
+	@Test
+	public void growsBeyondExpectedSize() {
+		int count = 10000;
+		for (int i = 0; i < count; i++) {
+			table.put("user" + i, (i & 0xff) + ".0." + (i >> 8 & 0xff) + ".1:" + i);
+		}
+		assertEquals(count, table.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals((i & 0xff) + ".0." + (i >> 8 & 0xff) + ".1:" + i, table.get("user" + i));
+		}
+		Set<String> usernames = new HashSet<>(table.usernames());
+		assertEquals(count, usernames.size());
+		assertTrue(usernames.contains("user0"));
+		assertTrue(usernames.contains("user" + (count - 1)));
+	}
+
+	@Test
+	public void nonAsciiUsernames() {
+		table.put("\u00e9mile", "1.2.3.4:5");
+		assertEquals("1.2.3.4:5", table.get("\u00e9mile"));
+		assertNull(table.get("emile"));
+	}
+
+	@Test
+	public void closeEmptiesTheTable() {
+		table.put("alice", "1.2.3.4:5");
+		table.put("bill", "localhost:5");
+		table.close();
+		assertEquals(0, table.size());
+		assertNull(table.get("alice"));
+		assertEquals(0, table.heapAddresses());
+		table.put("alice", "5.4.3.2:1");
+		assertEquals("5.4.3.2:1", table.get("alice"));
+	}
+}
@@ -0,0 +1,175 @@
+package nameserver.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PersistentAddressTableTest {
+
+	private static final long NEVER = Long.MAX_VALUE;
+
+	private File directory;
+	private PersistentAddressTable table;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("addresses").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (table != null)
+			table.close();
+		for (File file : directory.listFiles()) {
+			Files.delete(file.toPath());
+		}
+		Files.delete(directory.toPath());
+	}
+
+	@Test
+	public void replaysTheLogAfterARestart() throws IOException {
+		table = open(NEVER);
+		table.put("alice", "1.2.3.4:5");
+		table.put("bill", "localhost:80");
+		table.put("alice", "5.6.7.8:9");
+		table.close();
+
+		table = open(NEVER);
+		assertEquals("5.6.7.8:9", table.get("alice"));
+		assertEquals("localhost:80", table.get("bill"));
+		assertEquals(2, table.size());
+	}
+
+	@Test
+	public void replaysTheLogOnTopOfTheSnapshot() throws IOException {
+		table = open(NEVER);
+		table.put("alice", "1.1.1.1:1");
+		table.put("bill", "2.2.2.2:2");
+		table.compact();
+		table.put("alice", "3.3.3.3:3");
+		table.put("bill", "");
+		table.put("carl", "4.4.4.4:4");
+		table.close();
+
+		table = open(NEVER);
+		assertEquals("3.3.3.3:3", table.get("alice"));
+		assertEquals("", table.get("bill"));
+		assertEquals("4.4.4.4:4", table.get("carl"));
+	}
+
+	@Test
+	public void compactionDeletesOlderLogs() throws IOException {
+		table = open(NEVER);
+		table.put("alice", "1.1.1.1:1");
+		table.compact();
+		table.put("bill", "2.2.2.2:2");
+		table.compact();
+		table.close();
+
+		String[] names = directory.list();
+		Arrays.sort(names);
+		// log-1 was started when the table was opened, log-3 by the second compaction
+		assertEquals(Arrays.asList("log-3", "snapshot"), Arrays.asList(names));
+
+		table = open(NEVER);
+		assertEquals("1.1.1.1:1", table.get("alice"));
+		assertEquals("2.2.2.2:2", table.get("bill"));
+	}
+
+	@Test
+	public void removedAddressesAreNotRestoredFromOlderLogs() throws IOException {
+		table = open(NEVER);
+		table.put("alice", "1.1.1.1:1");
+		table.put("alice", "");
+		table.compact();
+		table.close();
+
+		table = open(NEVER);
+		String address = table.get("alice");
+		assertTrue(address == null || address.isEmpty());
+	}
+
+	@Test
+	public void tornRecordEndsTheReplay() throws IOException {
+		table = open(NEVER);
+		table.put("alice", "1.1.1.1:1");
+		table.close();
+		try (FileOutputStream log = new FileOutputStream(new File(directory, "log-1"), true)) {
+			// a username of 5 bytes of which only 2 made it to disk
+			log.write(new byte[] { 0, 0, 0, 5, 'b', 'i' });
+		}
+
+		table = open(NEVER);
+		assertEquals("1.1.1.1:1", table.get("alice"));
+		assertNull(table.get("bi"));
+		table.put("bill", "2.2.2.2:2");
+		table.close();
+
+		table = open(NEVER);
+		assertEquals("1.1.1.1:1", table.get("alice"));
+		assertEquals("2.2.2.2:2", table.get("bill"));
+	}
+
+	@Test
+	public void flushThreadCompactsLargeLogs() throws Exception {
+		table = open(64);
+		for (int i = 0; i < 100; i++) {
+			table.put("user" + i, "10.0.0." + i + ":80");
+		}
+		File snapshot = new File(directory, "snapshot");
+		for (int i = 0; i < 100 && !snapshot.exists(); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(snapshot.exists());
+		table.close();
+		assertFalse(new File(directory, "log-1").exists());
+
+		table = open(NEVER);
+		assertEquals(100, table.size());
+		assertEquals("10.0.0.99:80", table.get("user99"));
+	}
+
+	@Test
+	public void putWithoutIntervalReturnsOnlyOnceItsRecordIsForced() throws Exception {
+		table = open(NEVER);
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 200; i++) {
+						// the own record comes after all those put before
+						long before = table.progress()[0];
+						table.put("user" + id + "-" + i, "10.0.0." + id + ":" + i);
+						if (table.progress()[1] <= before)
+							failures.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, failures.get());
+		assertEquals(800, table.progress()[1]);
+	}
+
+	private PersistentAddressTable open(long compactThreshold) throws IOException {
+		return new PersistentAddressTable(new MapAddressTable(), directory, 0, compactThreshold);
+	}
+}
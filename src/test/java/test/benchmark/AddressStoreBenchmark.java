@@ -0,0 +1,88 @@
+package test.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import nameserver.store.AddressTable;
+import nameserver.store.MapAddressTable;
+import nameserver.store.PersistentAddressTable;
+
+/**
+ * Measures the {@link PersistentAddressTable}: how many registrations per
+ * second it accepts for a given fsync interval, how long a restart takes
+ * that has to replay the log, and how long one that only loads the
+ * snapshot takes.
+ * <p/>
+ * Usage: {@code AddressStoreBenchmark [addresses] [fsync intervals...]},
+ * e.g. {@code 1000000 100 10}.
+ */
+public class AddressStoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		long[] intervals = new long[Math.max(1, args.length - 1)];
+		intervals[0] = 100;
+		for (int i = 1; i < args.length; i++) {
+			intervals[i - 1] = Long.parseLong(args[i]);
+		}
+
+		for (long interval : intervals) {
+			File directory = Files.createTempDirectory("address-store").toFile();
+			try {
+				run(directory, count, interval);
+			} finally {
+				delete(directory);
+			}
+		}
+	}
+
+	private static void run(File directory, int count, long interval) throws IOException {
+		// never compact while registering, the restart has to replay everything
+		PersistentAddressTable table = new PersistentAddressTable(new MapAddressTable(), directory, interval,
+				Long.MAX_VALUE);
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			table.put(username(i), address(i));
+		}
+		table.close();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("fsync every %d ms: %d registrations in %.2f s (%.0f/s)%n", interval, count, seconds,
+				count / seconds);
+
+		start = System.nanoTime();
+		table = new PersistentAddressTable(new MapAddressTable(), directory, interval, Long.MAX_VALUE);
+		report("restart replaying the log", start, table, count);
+		table.compact();
+		table.close();
+
+		start = System.nanoTime();
+		table = new PersistentAddressTable(new MapAddressTable(), directory, interval, Long.MAX_VALUE);
+		report("restart loading the snapshot", start, table, count);
+		table.close();
+	}
+
+	private static void report(String name, long start, AddressTable table, int count) {
+		double millis = (System.nanoTime() - start) / 1e6;
+		String check = address(count - 1).equals(table.get(username(count - 1))) ? "ok" : "MISSING";
+		System.out.printf("  %s: %d addresses in %.0f ms, last lookup %s%n", name, table.size(), millis, check);
+	}
+
+	private static String username(int i) {
+		return "user" + i;
+	}
+
+	private static String address(int i) {
+		return "10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff) + ":" + (1024 + i % 60000);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
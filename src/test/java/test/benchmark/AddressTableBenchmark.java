@@ -0,0 +1,89 @@
+package test.benchmark;
+
+import java.util.Random;
+
+import nameserver.store.AddressTable;
+import nameserver.store.MapAddressTable;
+import nameserver.store.OffHeapAddressTable;
+
+/**
+ * Compares the {@link MapAddressTable} with the {@link OffHeapAddressTable}
+ * for zones of growing size: registrations and lookups per second, the heap
+ * the filled table occupies, and how long a full collection takes while it
+ * is alive. Run with a fixed heap, e.g. {@code -Xms2g -Xmx2g}, so the
+ * numbers of the two tables are comparable.
+ * <p/>
+ * Usage: {@code AddressTableBenchmark [sizes...]}, e.g.
+ * {@code 100000 1000000 4000000}.
+ */
+public class AddressTableBenchmark {
+
+	private static final int LOOKUPS = 2000000;
+	// private and public ranges on both sides of 128.0.0.0
+	private static final int[] FIRST_OCTETS = { 10, 88, 172, 192, 213 };
+
+	public static void main(String[] args) {
+		int[] sizes = { 100000, 1000000, 4000000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		// the first round only warms up
+		run(new MapAddressTable(), 100000, false);
+		run(new OffHeapAddressTable(), 100000, false);
+		for (int size : sizes) {
+			run(new MapAddressTable(), size, true);
+			run(new OffHeapAddressTable(), size, true);
+		}
+	}
+
+	private static void run(AddressTable table, int size, boolean print) {
+		long heapBefore = usedHeap();
+		long start = System.nanoTime();
+		for (int i = 0; i < size; i++) {
+			table.put("user" + i, address(i));
+		}
+		double putSeconds = (System.nanoTime() - start) / 1e9;
+		long heap = usedHeap() - heapBefore;
+		start = System.nanoTime();
+		System.gc();
+		long gc = (System.nanoTime() - start) / 1000000;
+
+		Random random = new Random(42);
+		int found = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < LOOKUPS; i++) {
+			if (table.get("user" + random.nextInt(size)) != null)
+				found++;
+		}
+		double getSeconds = (System.nanoTime() - start) / 1e9;
+
+		if (print) {
+			System.out.printf("%-20s %9d users: %9.0f puts/s %9.0f gets/s, heap %6.1f MB, full gc %4d ms%s%n", table
+					.getClass().getSimpleName(), size, size / putSeconds, LOOKUPS / getSeconds, heap / 1e6, gc,
+					found == LOOKUPS ? "" : " (lookups failed)");
+		}
+		table.put("user0", "");
+		try {
+			table.close();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String address(int i) {
+		return FIRST_OCTETS[i % FIRST_OCTETS.length] + "." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "."
+				+ (i & 0xff) + ":" + (1024 + i % 60000);
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,124 @@
+package test.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import util.Config;
+import util.NullOutputStream;
+import util.TestInputStream;
+import chatserver.Chatserver;
+
+/**
+ * Opens many concurrent logged-in client connections against a single
+ * {@link Chatserver} and reports how long it takes to get a connection
+ * served (connect until the {@code !login} reply) and the round-trip time of
+ * a command while all connections are open.
+ * <p/>
+ * Usage: {@code ChatserverLoadBenchmark [clients] [tcp.engine] [tcp.threads]},
+ * e.g. {@code 10000 blocking virtual}. Every connection uses two file
+ * descriptors in this JVM, so {@code ulimit -n} must be large enough.
+ */
+public class ChatserverLoadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		Config config = new Config("chatserver");
+		if (args.length > 1)
+			config.setProperty("tcp.engine", args[1]);
+		if (args.length > 2)
+			config.setProperty("tcp.threads", args[2]);
+
+		Config userConfig = new Config("user");
+		List<String> logins = new ArrayList<>();
+		for (String key : userConfig.listKeys()) {
+			logins.add("!login " + key.replace(".password", "") + " " + userConfig.getString(key));
+		}
+
+		TestInputStream serverIn = new TestInputStream();
+		Chatserver chatserver = new Chatserver("chatserver", config, serverIn, new PrintStream(
+				NullOutputStream.getInstance()));
+		new Thread(chatserver).start();
+		Thread.sleep(1000);
+
+		String host = "localhost";
+		int port = config.getInt("tcp.port");
+		Socket[] sockets = new Socket[clients];
+		PrintWriter[] writers = new PrintWriter[clients];
+		BufferedReader[] readers = new BufferedReader[clients];
+		long[] acceptLatency = new long[clients];
+
+		for (int i = 0; i < clients; i++) {
+			long start = System.nanoTime();
+			sockets[i] = new Socket(host, port);
+			sockets[i].setSoTimeout(10000);
+			writers[i] = new PrintWriter(sockets[i].getOutputStream(), true);
+			readers[i] = new BufferedReader(new InputStreamReader(sockets[i].getInputStream()));
+			writers[i].println(logins.get(i % logins.size()));
+			try {
+				readers[i].readLine();
+			} catch (SocketTimeoutException e) {
+				System.out.println("Client " + (i + 1) + " was not served within 10 s, giving up.");
+				serverIn.addLine("!exit");
+				System.exit(1);
+			}
+			acceptLatency[i] = System.nanoTime() - start;
+		}
+		System.out.println(clients + " clients connected and logged in");
+		report("accept latency", acceptLatency);
+
+		final long[] roundTrip = new long[clients];
+		ExecutorService drivers = Executors.newFixedThreadPool(64);
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			final PrintWriter writer = writers[i];
+			final BufferedReader reader = readers[i];
+			final int index = i;
+			drivers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						long sent = System.nanoTime();
+						writer.println("!lastMsg");
+						reader.readLine();
+						roundTrip[index] = System.nanoTime() - sent;
+					} catch (IOException e) {
+						roundTrip[index] = Long.MAX_VALUE;
+					}
+				}
+			});
+		}
+		drivers.shutdown();
+		drivers.awaitTermination(5, TimeUnit.MINUTES);
+		long elapsed = System.nanoTime() - start;
+		report("command round trip", roundTrip);
+		System.out.printf("throughput: %.0f commands/s%n", clients / (elapsed / 1e9));
+
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		serverIn.addLine("!exit");
+	}
+
+	static void report(String name, long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		System.out.printf("%s: p50 %.3f ms, p99 %.3f ms, max %.3f ms%n", name, percentile(sorted, 50) / 1e6,
+				percentile(sorted, 99) / 1e6, sorted[sorted.length - 1] / 1e6);
+	}
+
+	static long percentile(long[] sorted, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, index)];
+	}
+}
@@ -0,0 +1,66 @@
+package test.benchmark;
+
+import nameserver.DomainNames;
+
+/**
+ * Compares the work {@code Nameserver.registerUser} does on every hop to
+ * take a username apart: the former {@code String.matches} validation plus
+ * {@code substring}/{@code toLowerCase}, against {@link DomainNames}.
+ * <p/>
+ * Usage: {@code DomainNamesBenchmark [names] [rounds]}
+ */
+public class DomainNamesBenchmark {
+
+	private static final String[] ZONES = { "at", "de", "vienna.at", "Graz.AT", "berlin.de" };
+
+	private static int sink;
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			names[i] = "user" + i + "." + ZONES[i % ZONES.length];
+		}
+
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			for (String name : names) {
+				regex(name);
+			}
+			double regex = (System.nanoTime() - start) / 1e9;
+
+			start = System.nanoTime();
+			for (String name : names) {
+				domainNames(name);
+			}
+			double parser = (System.nanoTime() - start) / 1e9;
+
+			System.out.printf("round %d: regex %10.0f names/s, DomainNames %10.0f names/s%n", round, count / regex,
+					count / parser);
+		}
+		// keeps the results alive
+		if (sink == 42)
+			System.out.println();
+	}
+
+	private static void regex(String username) {
+		int dot = username.indexOf('.');
+		String zone = username.substring(dot + 1);
+		if (!zone.matches("[a-zA-Z]+(.[a-zA-Z]+)*"))
+			throw new IllegalStateException(username);
+		zone = zone.toLowerCase();
+		String label = username.substring(0, dot);
+		sink += zone.length() + label.length();
+	}
+
+	private static void domainNames(String username) {
+		int dot = DomainNames.split(username);
+		if (dot == DomainNames.INVALID)
+			throw new IllegalStateException(username);
+		String zone = DomainNames.zone(username, dot);
+		String label = DomainNames.label(username, dot);
+		sink += zone.length() + label.length();
+	}
+}
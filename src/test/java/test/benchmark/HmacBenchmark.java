@@ -0,0 +1,109 @@
+package test.benchmark;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+
+import util.HmacService;
+import util.Keys;
+
+/**
+ * Measures how many private messages per second are signed and verified,
+ * once with a single {@link Mac} that the threads take turns on and once
+ * with an {@link HmacService}.
+ * <p/>
+ * Usage: {@code HmacBenchmark [seconds] [threads...]}, e.g. {@code 3 1 4 16}.
+ */
+public class HmacBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		List<Integer> threadCounts = new ArrayList<>();
+		for (int i = 1; i < args.length; i++) {
+			threadCounts.add(Integer.parseInt(args[i]));
+		}
+		if (threadCounts.isEmpty()) {
+			threadCounts.add(1);
+			threadCounts.add(4);
+			threadCounts.add(16);
+		}
+
+		Key key = Keys.readSecretKey(new File("keys/hmac.key"));
+		final Mac shared = Mac.getInstance("HmacSHA256");
+		shared.init(key);
+		final HmacService service = new HmacService(key, "HmacSHA256", 16);
+		final byte[] message = "!msg hello, this is a private message of about a hundred bytes from alice.vienna.at"
+				.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer messageBuffer = ByteBuffer.wrap(message).asReadOnlyBuffer();
+
+		Operation synchronizedMac = new Operation() {
+			@Override
+			public boolean run() {
+				byte[] tag;
+				synchronized (shared) {
+					tag = shared.doFinal(message);
+				}
+				byte[] expected;
+				synchronized (shared) {
+					expected = shared.doFinal(message);
+				}
+				return MessageDigest.isEqual(tag, expected);
+			}
+		};
+		Operation pooled = new Operation() {
+			@Override
+			public boolean run() {
+				byte[] tag = service.sign(messageBuffer.duplicate());
+				return service.verify(ByteBuffer.wrap(tag), messageBuffer.duplicate());
+			}
+		};
+
+		for (int round = 0; round < 2; round++) {
+			// the first round only warms up
+			for (int threads : threadCounts) {
+				double a = measure(synchronizedMac, threads, round == 0 ? 1 : seconds);
+				double b = measure(pooled, threads, round == 0 ? 1 : seconds);
+				if (round == 1)
+					System.out.printf("%2d threads: synchronized Mac %.0f, HmacService %.0f sign+verify/s%n",
+							threads, a, b);
+			}
+		}
+	}
+
+	private interface Operation {
+		boolean run();
+	}
+
+	private static double measure(final Operation operation, int threads, int seconds) throws InterruptedException {
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final AtomicLong done = new AtomicLong();
+		List<Thread> workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread() {
+				@Override
+				public void run() {
+					long count = 0;
+					while (System.nanoTime() < end) {
+						if (!operation.run())
+							throw new IllegalStateException("HMAC did not verify");
+						count++;
+					}
+					done.addAndGet(count);
+				}
+			};
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return done.get() / (double) seconds;
+	}
+}
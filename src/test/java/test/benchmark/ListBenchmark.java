@@ -0,0 +1,113 @@
+package test.benchmark;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Config;
+import util.NullOutputStream;
+import util.TestInputStream;
+import chatserver.Chatserver;
+
+/**
+ * Measures how many UDP {@code !list} requests per second a {@link Chatserver}
+ * answers for a growing number of receiver threads ({@code udp.receivers}).
+ * <p/>
+ * Usage: {@code ListBenchmark [clients] [seconds] [receivers...]}, e.g.
+ * {@code 32 5 1 2 4 8}.
+ */
+public class ListBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		List<Integer> receiverCounts = new ArrayList<>();
+		for (int i = 2; i < args.length; i++) {
+			receiverCounts.add(Integer.parseInt(args[i]));
+		}
+		if (receiverCounts.isEmpty()) {
+			receiverCounts.add(1);
+			receiverCounts.add(2);
+			receiverCounts.add(4);
+			receiverCounts.add(8);
+		}
+
+		for (int receivers : receiverCounts) {
+			System.out.printf("%d receivers: %.0f !list requests/s%n", receivers, run(receivers, clients, seconds));
+		}
+	}
+
+	private static double run(int receivers, int clients, int seconds) throws Exception {
+		Config config = new Config("chatserver");
+		config.setProperty("udp.receivers", receivers);
+		TestInputStream serverIn = new TestInputStream();
+		Chatserver chatserver = new Chatserver("chatserver", config, serverIn, new PrintStream(
+				NullOutputStream.getInstance()));
+		new Thread(chatserver).start();
+		Thread.sleep(1000);
+
+		// log in every known user so the response is not empty
+		List<Socket> sessions = new ArrayList<>();
+		Config userConfig = new Config("user");
+		for (String key : userConfig.listKeys()) {
+			Socket socket = new Socket("localhost", config.getInt("tcp.port"));
+			new PrintWriter(socket.getOutputStream(), true).println("!login " + key.replace(".password", "") + " "
+					+ userConfig.getString(key));
+			new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+			sessions.add(socket);
+		}
+
+		final InetAddress host = InetAddress.getByName("localhost");
+		final int port = config.getInt("udp.port");
+		final long end = System.currentTimeMillis() + seconds * 1000L;
+		final AtomicLong answered = new AtomicLong();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < clients; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try (DatagramSocket socket = new DatagramSocket()) {
+						socket.setSoTimeout(1000);
+						byte[] request = "!list chunked".getBytes();
+						DatagramPacket requestPacket = new DatagramPacket(request, request.length, host, port);
+						byte[] buffer = new byte[65507];
+						DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+						while (System.currentTimeMillis() < end) {
+							socket.send(requestPacket);
+							try {
+								response.setLength(buffer.length);
+								socket.receive(response);
+								answered.incrementAndGet();
+							} catch (SocketTimeoutException e) {
+								// lost, just ask again
+							}
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		for (Socket socket : sessions) {
+			socket.close();
+		}
+		serverIn.addLine("!exit");
+		Thread.sleep(1000);
+		return answered.get() / (double) seconds;
+	}
+}
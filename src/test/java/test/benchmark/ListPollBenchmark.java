@@ -0,0 +1,84 @@
+package test.benchmark;
+
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import util.Config;
+import util.NullOutputStream;
+import util.TestInputStream;
+import chatserver.Chatserver;
+import client.Client;
+
+/**
+ * Measures how often one {@link Client} can poll {@code !list}, once waiting
+ * for every response before asking again and once keeping up to
+ * {@code window} requests outstanding with {@link Client#listAsync()}.
+ * <p/>
+ * Usage: {@code ListPollBenchmark [seconds] [window]}
+ */
+public class ListPollBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+		PrintStream quiet = new PrintStream(NullOutputStream.getInstance());
+		Thread server = new Thread(new Chatserver("chatserver", new Config("chatserver"), new TestInputStream(),
+				quiet));
+		server.setDaemon(true);
+		server.start();
+		Thread.sleep(1000);
+		Client client = new Client("monitor", new Config("client"), new TestInputStream(), quiet);
+		Thread thread = new Thread(client);
+		thread.setDaemon(true);
+		thread.start();
+		Thread.sleep(1000);
+
+		for (int round = 0; round < 2; round++) {
+			// the first round only warms up
+			int duration = round == 0 ? 1 : seconds;
+			long end = System.nanoTime() + duration * 1000000000L;
+			long polls = 0;
+			while (System.nanoTime() < end) {
+				check(client.list());
+				polls++;
+			}
+			double serial = polls / (double) duration;
+
+			final Semaphore outstanding = new Semaphore(window);
+			final AtomicLong answered = new AtomicLong();
+			BiConsumer<String, Throwable> done = new BiConsumer<String, Throwable>() {
+				@Override
+				public void accept(String response, Throwable failure) {
+					if (failure == null) {
+						check(response);
+						answered.incrementAndGet();
+					}
+					outstanding.release();
+				}
+			};
+			end = System.nanoTime() + duration * 1000000000L;
+			while (System.nanoTime() < end) {
+				outstanding.acquire();
+				CompletableFuture<String> response = client.listAsync();
+				response.whenComplete(done);
+			}
+			outstanding.acquire(window);
+			double pipelined = answered.get() / (double) duration;
+
+			if (round == 1) {
+				System.out.printf("one at a time:   %.0f polls/s%n", serial);
+				System.out.printf("%d outstanding: %.0f polls/s%n", window, pipelined);
+			}
+		}
+		System.exit(0);
+	}
+
+	private static void check(String response) {
+		if (response == null || !response.startsWith("There are no online users."))
+			throw new IllegalStateException("Unexpected !list response: " + response);
+	}
+}
@@ -0,0 +1,94 @@
+package test.benchmark;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.Socket;
+
+import util.Config;
+import util.NullOutputStream;
+import util.TestInputStream;
+import chatserver.Chatserver;
+
+/**
+ * Measures how many commands per second one connection gets answered when
+ * every command waits for its reply, compared with sending all commands
+ * with correlation ids ({@code #id !lastMsg}) at once and matching the
+ * replies afterwards.
+ * <p/>
+ * Usage: {@code PipelineBenchmark [commands]}
+ */
+public class PipelineBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int commands = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		Config config = new Config("chatserver");
+		TestInputStream serverIn = new TestInputStream();
+		new Thread(new Chatserver("chatserver", config, serverIn, new PrintStream(NullOutputStream.getInstance())))
+				.start();
+		Thread.sleep(1000);
+
+		Config users = new Config("user");
+		String key = users.listKeys().iterator().next();
+		try (Socket socket = new Socket("localhost", config.getInt("tcp.port"))) {
+			socket.setTcpNoDelay(true);
+			Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			out.write("#0 !login " + key.replace(".password", "") + " " + users.getString(key) + "\n");
+			out.flush();
+			in.readLine();
+
+			for (int round = 0; round < 2; round++) {
+				// the first round only warms up
+				long start = System.nanoTime();
+				for (int i = 1; i <= commands; i++) {
+					out.write("#" + i + " !lastMsg\n");
+					out.flush();
+					check(in.readLine(), i);
+				}
+				double serial = (System.nanoTime() - start) / 1e9;
+
+				// replies are read concurrently, so neither side's buffers fill up
+				final BufferedReader replies = in;
+				final int count = commands;
+				Thread reader = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for (int i = 1; i <= count; i++) {
+								check(replies.readLine(), i);
+							}
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				};
+				start = System.nanoTime();
+				reader.start();
+				for (int i = 1; i <= commands; i++) {
+					out.write("#" + i + " !lastMsg\n");
+				}
+				out.flush();
+				reader.join();
+				double pipelined = (System.nanoTime() - start) / 1e9;
+
+				if (round == 1) {
+					System.out.printf("one at a time: %.0f commands/s%n", commands / serial);
+					System.out.printf("pipelined:     %.0f commands/s%n", commands / pipelined);
+				}
+			}
+		}
+		serverIn.addLine("!exit");
+		Thread.sleep(500);
+		System.exit(0);
+	}
+
+	private static void check(String reply, int id) {
+		if (reply == null || !reply.startsWith("#" + id + " "))
+			throw new IllegalStateException("Unexpected reply to #" + id + ": " + reply);
+	}
+}
@@ -0,0 +1,141 @@
+package test.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import nameserver.Nameserver;
+import util.Config;
+import util.Keys;
+import util.NullOutputStream;
+import util.TestInputStream;
+import chatserver.Chatserver;
+import client.Client;
+
+/**
+ * Measures how long a registered client takes to acknowledge private
+ * messages from many peers that connect at the same moment. Every peer opens
+ * its own connection, sends one signed message and waits for the
+ * {@code !ack}.
+ * <p/>
+ * Usage: {@code PrivateMessageBenchmark [virtual|platform] [peers...]}, e.g.
+ * {@code platform 100 300 500}.
+ */
+public class PrivateMessageBenchmark {
+
+	private static final String ADDRESS = "127.0.0.1:15556";
+
+	public static void main(String[] args) throws Exception {
+		String threads = args.length > 0 ? args[0] : "virtual";
+		List<Integer> peerCounts = new ArrayList<>();
+		for (int i = 1; i < args.length; i++) {
+			peerCounts.add(Integer.parseInt(args[i]));
+		}
+		if (peerCounts.isEmpty()) {
+			peerCounts.add(100);
+			peerCounts.add(300);
+			peerCounts.add(500);
+		}
+
+		PrintStream quiet = new PrintStream(NullOutputStream.getInstance());
+		start(new Nameserver("ns-root", new Config("ns-root"), new TestInputStream(), quiet));
+		start(new Nameserver("ns-de", new Config("ns-de"), new TestInputStream(), quiet));
+		start(new Chatserver("chatserver", new Config("chatserver"), new TestInputStream(), quiet));
+
+		Config config = new Config("client");
+		config.setProperty("private.threads", threads);
+		TestInputStream clientIn = new TestInputStream();
+		start(new Client("bill.de", config, clientIn, quiet));
+		clientIn.addLine("!login bill.de 23456");
+		Thread.sleep(500);
+		clientIn.addLine("!register " + ADDRESS);
+		Thread.sleep(1000);
+
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(Keys.readSecretKey(new File(config.getString("hmac.key"))));
+		String text = "hello from a benchmark ";
+		String line = new String(Base64.encode(mac.doFinal(("!msg " + text).getBytes())), StandardCharsets.UTF_8)
+				+ ";" + "peer:" + text;
+
+		for (int round = 0; round < 2; round++) {
+			// the first round only warms up
+			for (int peers : peerCounts) {
+				Result result = run(peers, line);
+				if (round == 1)
+					System.out.printf("%s threads, %d peers: all acknowledged after %d ms, slowest peer %d ms, "
+							+ "%d failed%n", threads, peers, result.total, result.slowest, result.failed);
+			}
+		}
+		System.exit(0);
+	}
+
+	private static Result run(int peers, final String line) throws InterruptedException {
+		final int port = Integer.parseInt(ADDRESS.substring(ADDRESS.indexOf(':') + 1));
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(peers);
+		final AtomicLong slowest = new AtomicLong();
+		final AtomicInteger failed = new AtomicInteger();
+		for (int i = 0; i < peers; i++) {
+			Thread peer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						go.await();
+						long start = System.nanoTime();
+						try (Socket socket = new Socket("127.0.0.1", port)) {
+							PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+							BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+							out.println(line);
+							if (!"!ack".equals(in.readLine()))
+								failed.incrementAndGet();
+						}
+						long took = (System.nanoTime() - start) / 1000000;
+						long previous;
+						while ((previous = slowest.get()) < took && !slowest.compareAndSet(previous, took)) {
+						}
+					} catch (Exception e) {
+						failed.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			peer.start();
+		}
+		Thread.sleep(200);
+		long start = System.nanoTime();
+		go.countDown();
+		done.await();
+		Result result = new Result();
+		result.total = (System.nanoTime() - start) / 1000000;
+		result.slowest = slowest.get();
+		result.failed = failed.get();
+		return result;
+	}
+
+	private static void start(Runnable component) throws InterruptedException {
+		Thread thread = new Thread(component);
+		thread.setDaemon(true);
+		thread.start();
+		Thread.sleep(1000);
+	}
+
+	private static class Result {
+		long total;
+		long slowest;
+		int failed;
+	}
+}
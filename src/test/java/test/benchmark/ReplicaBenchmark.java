@@ -0,0 +1,128 @@
+package test.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nameserver.INameserverForChatserver;
+import nameserver.Nameserver;
+import util.Config;
+import util.NullOutputStream;
+
+/**
+ * Measures how lookup throughput in the zone {@code at} grows with the
+ * number of nameservers replicating it. Every nameserver runs in a process
+ * of its own; the lookups come from this process, spread over the replicas
+ * the way the root hands them out.
+ * <p/>
+ * Usage: {@code ReplicaBenchmark [seconds] [threads] [replicas...]}, e.g.
+ * {@code 5 32 1 2 4}.
+ */
+public class ReplicaBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2 && args[0].equals("node")) {
+			runNode(args[1]);
+			return;
+		}
+
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		List<Integer> replicaCounts = new ArrayList<>();
+		for (int i = 2; i < args.length; i++) {
+			replicaCounts.add(Integer.parseInt(args[i]));
+		}
+		if (replicaCounts.isEmpty()) {
+			replicaCounts.add(1);
+			replicaCounts.add(2);
+			replicaCounts.add(4);
+		}
+
+		for (int replicas : replicaCounts) {
+			System.out.printf("%d replicas: %.0f lookups/s%n", replicas, run(replicas, seconds, threads));
+		}
+	}
+
+	private static double run(int replicas, int seconds, int threads) throws Exception {
+		List<Process> nodes = new ArrayList<>();
+		try {
+			nodes.add(startNode("ns-root"));
+			for (int i = 0; i < replicas; i++) {
+				nodes.add(startNode("ns-at"));
+			}
+
+			Config config = new Config("chatserver");
+			final INameserverForChatserver root = (INameserverForChatserver) LocateRegistry.getRegistry(
+					config.getString("registry.host"), config.getInt("registry.port")).lookup(
+					config.getString("root_id"));
+			root.registerUser("alice.at", "127.0.0.1:12345");
+
+			final long end = System.currentTimeMillis() + seconds * 1000L;
+			final AtomicLong lookups = new AtomicLong();
+			List<Thread> workers = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				Thread worker = new Thread() {
+					@Override
+					public void run() {
+						try {
+							// the root hands out the replicas in turn
+							INameserverForChatserver at = root.getNameserver("at");
+							long count = 0;
+							while (System.currentTimeMillis() < end) {
+								at.lookup("alice");
+								count++;
+							}
+							lookups.addAndGet(count);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				};
+				worker.start();
+				workers.add(worker);
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			return lookups.get() / (double) seconds;
+		} finally {
+			for (int i = nodes.size() - 1; i >= 0; i--) {
+				stopNode(nodes.get(i));
+			}
+		}
+	}
+
+	private static Process startNode(String component) throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				ReplicaBenchmark.class.getName(), "node", component).inheritIO()
+				.redirectInput(ProcessBuilder.Redirect.PIPE).start();
+		Thread.sleep(1500);
+		return process;
+	}
+
+	private static void stopNode(Process process) throws IOException, InterruptedException {
+		OutputStream in = process.getOutputStream();
+		in.write("!exit\n".getBytes());
+		in.flush();
+		Thread.sleep(300);
+		process.destroy();
+		process.waitFor();
+	}
+
+	/**
+	 * Runs one nameserver without logging until {@code !exit} is read from
+	 * standard input.
+	 */
+	private static void runNode(String component) {
+		Config config = new Config(component);
+		config.setProperty("request.log", "off");
+		new Nameserver(component, config, System.in, new PrintStream(NullOutputStream.getInstance())).run();
+		System.exit(0);
+	}
+}
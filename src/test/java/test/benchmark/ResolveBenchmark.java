@@ -0,0 +1,63 @@
+package test.benchmark;
+
+import java.io.PrintStream;
+
+import nameserver.INameserverForChatserver;
+import nameserver.Nameserver;
+import util.Config;
+import util.NullOutputStream;
+import util.TestInputStream;
+import chatserver.AddressCache;
+import chatserver.NameserverResolver;
+
+/**
+ * Compares the latency of resolving {@code alice.vienna.at} by walking the
+ * hierarchy from the caller ({@code getNameserver("at")},
+ * {@code getNameserver("vienna")}, {@code lookup("alice")}) with a single
+ * {@link INameserverForChatserver#resolve(String)} call at the root. All
+ * nameservers run in this JVM, so every remote call goes over loopback.
+ * <p/>
+ * Usage: {@code ResolveBenchmark [iterations]}
+ */
+public class ResolveBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+		TestInputStream[] inputs = new TestInputStream[4];
+		String[] names = { "ns-root", "ns-at", "ns-de", "ns-vienna-at" };
+		for (int i = 0; i < names.length; i++) {
+			inputs[i] = new TestInputStream();
+			new Thread(new Nameserver(names[i], new Config(names[i]), inputs[i], new PrintStream(
+					NullOutputStream.getInstance()))).start();
+			Thread.sleep(1000);
+		}
+
+		NameserverResolver resolver = new NameserverResolver(new Config("chatserver"), 0, new AddressCache(1, 0, 0));
+		INameserverForChatserver root = resolver.getRoot();
+		root.registerUser("alice.vienna.at", "127.0.0.1:12345");
+
+		long[] walk = new long[iterations];
+		long[] resolve = new long[iterations];
+		for (int round = 0; round < 2; round++) {
+			// the first round only warms up
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				root.getNameserver("at").getNameserver("vienna").lookup("alice");
+				walk[i] = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				root.resolve("alice.vienna.at");
+				resolve[i] = System.nanoTime() - start;
+			}
+		}
+		ChatserverLoadBenchmark.report("client-driven walk", walk);
+		ChatserverLoadBenchmark.report("resolve(fqdn)", resolve);
+
+		for (int i = names.length - 1; i >= 0; i--) {
+			inputs[i].addLine("!exit");
+			Thread.sleep(500);
+		}
+		System.exit(0);
+	}
+}